@@ -0,0 +1,35 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marcapasos de envío compartido por varios TSocket.
+ * En lugar de volcar toda la ventana en SimNet de golpe, cada socket calcula el
+ * instante de salida de sus segmentos (ventana / RTT) y el Pacer los libera en ese
+ * momento desde un único Scheduler de alta resolución: un hilo para todas las
+ * conexiones en tiempo real, o el propio reloj virtual en simulación.
+ *
+ * Programar un envío nunca bloquea, así que puede hacerse con el lock del socket
+ * tomado; el envío a la red se hace después, ya sin locks, desde el Scheduler.
+ */
+public class Pacer {
+
+    private final SimNet network;
+    private final Scheduler reloj;
+
+    public Pacer(SimNet network) {
+        this.network = network;
+        Scheduler simulador = network.getScheduler();
+        this.reloj = simulador != null ? simulador : new RealTimeScheduler();
+    }
+
+    /** Tiempo actual del reloj del marcapasos (ns). */
+    public long nanoTime() {
+        return reloj.nanoTime();
+    }
+
+    /** Programa la salida del segmento en el instante indicado (ns, mismo reloj que nanoTime). */
+    public void programar(TCPSegment_v5 seg, long instante) {
+        reloj.schedule(() -> network.send(seg), Math.max(0, instante - reloj.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+}
\ No newline at end of file
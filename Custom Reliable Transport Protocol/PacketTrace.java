@@ -0,0 +1,238 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Grabador binario de eventos de segmentos (TSocket y SimNet), pensado para poder
+ * dejarse activado: cada hilo escribe en su propio anillo preasignado, sin locks ni
+ * reservas de memoria por evento, y al llenarse se sobrescriben los más antiguos.
+ * Desactivado, el coste es la lectura de un volatile. El volcado (volcar) se puede
+ * pedir en cualquier momento desde otro hilo; TraceAnalyzer lo interpreta offline.
+ *
+ * Memoria: 40 bytes por evento. Los anillos no se liberan (sobreviven a su hilo para
+ * poder volcarlos), y en tiempo real cada TSocket tiene su propio hilo de Scheduler,
+ * así que el total de eventos entre todos los anillos está acotado (ver activar).
+ *
+ * Formato del fichero (big-endian, estilo pcap): cabecera de 8 bytes
+ * (int MAGIC, short VERSION, short TAM_REGISTRO) seguida de registros de 36 bytes
+ * ordenados por tiempo:
+ *   long tiempo (ns), byte tipo, byte flags, short hilo,
+ *   int puertoOrigen, int puertoDestino, int seq, int ack, int wnd, int longitud.
+ * En los eventos ESTADO los puertos son local/remoto, seq es el estado nuevo y
+ * ack el anterior (ordinales de State).
+ */
+public final class PacketTrace {
+
+    // --- Tipos de evento ---
+    public static final byte ENVIO = 1;         // Segmento entregado a SimNet
+    public static final byte RECEPCION = 2;     // Segmento entregado a un TSocket
+    public static final byte DESCARTE = 3;      // SimNet pierde el segmento (lossRate); la red saturada no descarta
+    public static final byte RETRANSMISION = 4; // El RTO de un TSocket reenvía un segmento
+    public static final byte ESTADO = 5;        // Cambio de estado de un TSocket
+    public static final byte SATURACION = 6;    // SimNet simulada, enlace lleno: un envío redundante no espera turno
+                                                // (ACK sustituido por uno más nuevo, o reenvío de un segmento en cola)
+
+    // --- Flags (byte de flags del registro) ---
+    public static final int F_SYN = 1, F_ACK = 2, F_FIN = 4, F_PSH = 8, F_FEC = 16;
+
+    static final int MAGIC = 0x54535452; // "TSTR"
+    static final short VERSION = 1;
+    static final short TAM_REGISTRO = 36;
+
+    private static final int CAMPOS = 5; // longs por evento en el anillo
+    private static final int MAX_CAPACIDAD = 1 << 24;
+    private static final long MAX_EVENTOS_POR_DEFECTO = 1 << 20; // Total entre todos los hilos (~40 MB)
+    private static final int MIN_ANILLO = 64; // Con menos presupuesto, el hilo no graba
+
+    private static volatile boolean activo = false;
+    // Configuración y reparto de memoria (con el monitor de la clase; solo al crear anillos)
+    private static int capacidad = 1 << 15; // Eventos por hilo (potencia de 2)
+    private static long presupuesto = MAX_EVENTOS_POR_DEFECTO;
+    private static long reservados = 0;     // Eventos ya asignados a anillos
+    private static int siguienteHilo = 0;
+    private static final LongAdder perdidos = new LongAdder(); // Eventos de hilos sin anillo
+
+    private static final CopyOnWriteArrayList<Anillo> anillos = new CopyOnWriteArrayList<>();
+    // null si no quedaba presupuesto cuando el hilo registró su primer evento
+    private static final ThreadLocal<Anillo> propio = ThreadLocal.withInitial(PacketTrace::crearAnillo);
+
+    private PacketTrace() {
+    }
+
+    /**
+     * Activa la grabación con un total de max(eventosPorHilo, 2^20) eventos
+     * (unos 40 MB) repartidos entre todos los hilos.
+     *
+     * @see #activar(int, long)
+     */
+    public static void activar(int eventosPorHilo) {
+        activar(eventosPorHilo, Math.max(eventosPorHilo, MAX_EVENTOS_POR_DEFECTO));
+    }
+
+    /**
+     * Activa la grabación. Los anillos se crean al registrar el primer evento de cada
+     * hilo con la capacidad vigente en ese momento (redondeada a potencia de 2), hasta
+     * agotar maxEventos entre todos: a partir de ahí los hilos nuevos reciben anillos
+     * más pequeños y, sin presupuesto, no graban (sus eventos se cuentan en
+     * getEventosPerdidos). Los anillos ya creados se conservan al volver a activar.
+     * La memoria máxima es de unos 40 * maxEventos bytes.
+     */
+    public static synchronized void activar(int eventosPorHilo, long maxEventos) {
+        if (eventosPorHilo <= 0 || eventosPorHilo > MAX_CAPACIDAD) {
+            throw new IllegalArgumentException("Capacidad de traza fuera de rango (1.." + MAX_CAPACIDAD + "): " + eventosPorHilo);
+        }
+        if (maxEventos < eventosPorHilo) {
+            throw new IllegalArgumentException("El total de eventos (" + maxEventos + ") no da para un anillo de " + eventosPorHilo);
+        }
+        int c = 1;
+        while (c < eventosPorHilo) c <<= 1;
+        capacidad = c;
+        presupuesto = maxEventos;
+        activo = true;
+    }
+
+    public static void desactivar() {
+        activo = false;
+    }
+
+    public static boolean isActivo() {
+        return activo;
+    }
+
+    /** Eventos no grabados porque su hilo se quedó sin anillo (presupuesto agotado). */
+    public static long getEventosPerdidos() {
+        return perdidos.sum();
+    }
+
+    /** Primer evento de un hilo: le asigna un anillo si queda presupuesto. */
+    private static synchronized Anillo crearAnillo() {
+        int c = capacidad;
+        while (c > presupuesto - reservados) c >>= 1;
+        if (c < MIN_ANILLO) return null;
+        reservados += c;
+        Anillo a = new Anillo(c, siguienteHilo++);
+        anillos.add(a); // Solo una vez por hilo: se conserva aunque el hilo termine
+        return a;
+    }
+
+    /** Registra un evento de segmento en el anillo del hilo actual. */
+    public static void registrar(byte tipo, TCPSegment_v5 seg, long tiempo) {
+        if (!activo) return;
+        Anillo a = propio.get();
+        if (a == null) {
+            perdidos.increment();
+            return;
+        }
+        int flags = (seg.syn ? F_SYN : 0) | (seg.ack ? F_ACK : 0) | (seg.fin ? F_FIN : 0)
+                | (seg.psh ? F_PSH : 0) | (seg.fec ? F_FEC : 0);
+        a.escribir(tiempo, tipo, flags, seg.sourcePort, seg.destPort,
+                seg.seqNum, seg.ackNum, seg.wnd, seg.length());
+    }
+
+    /** Registra un cambio de estado de un socket. */
+    public static void registrarEstado(int puertoLocal, int puertoRemoto, State anterior, State nuevo, long tiempo) {
+        if (!activo) return;
+        Anillo a = propio.get();
+        if (a == null) {
+            perdidos.increment();
+            return;
+        }
+        a.escribir(tiempo, ESTADO, 0, puertoLocal, puertoRemoto,
+                nuevo.ordinal(), anterior.ordinal(), 0, 0);
+    }
+
+    /**
+     * Vuelca a un fichero los eventos que conservan los anillos de todos los hilos,
+     * ordenados por tiempo. No detiene la grabación: los eventos que se sobrescriben
+     * mientras se copian se descartan.
+     *
+     * @return número de eventos escritos
+     */
+    public static long volcar(Path fichero) throws IOException {
+        List<long[]> eventos = new ArrayList<>();
+        for (Anillo a : anillos) a.copiar(eventos);
+        eventos.sort(Comparator.comparingLong(e -> e[0])); // Estable: conserva el orden de cada hilo
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(fichero)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(TAM_REGISTRO);
+            for (long[] e : eventos) {
+                out.writeLong(e[0]);
+                out.writeByte((int) (e[1] >>> 56));
+                out.writeByte((int) (e[1] >>> 48));
+                out.writeShort((int) (e[1] >>> 32));
+                out.writeInt((int) (e[2] >>> 32));
+                out.writeInt((int) e[2]);
+                out.writeInt((int) (e[3] >>> 32));
+                out.writeInt((int) e[3]);
+                out.writeInt((int) (e[4] >>> 32));
+                out.writeInt((int) e[1]);
+            }
+        }
+        return eventos.size();
+    }
+
+    /**
+     * Anillo de un único hilo escritor. Cada evento ocupa CAMPOS longs consecutivos:
+     * tiempo | tipo, flags, hilo, longitud | origen, destino | seq, ack | wnd.
+     * La posición se publica después de escribir el evento, así que un lector que la
+     * consulte antes y después de copiar sabe qué eventos son válidos. Para que esa
+     * comprobación valga según el modelo de memoria, los campos se escriben con
+     * lazySet (release: no se adelantan a la posición ya publicada) y se leen con get
+     * (acquire: no se retrasan tras la segunda lectura de la posición). Sin fences
+     * explícitos, que en Java 8 no existen fuera de Unsafe; en x86 ambos son
+     * accesos normales.
+     */
+    private static final class Anillo {
+        private final AtomicLongArray datos;
+        private final int mascara;
+        private final int hilo;
+        private final AtomicLong posicion = new AtomicLong(); // Eventos escritos desde el inicio
+
+        Anillo(int capacidad, int hilo) {
+            this.datos = new AtomicLongArray(capacidad * CAMPOS);
+            this.mascara = capacidad - 1;
+            this.hilo = hilo;
+        }
+
+        void escribir(long tiempo, int tipo, int flags, int origen, int destino, int seq, int ack, int wnd, int longitud) {
+            long p = posicion.get();
+            int i = (int) (p & mascara) * CAMPOS;
+            datos.lazySet(i, tiempo);
+            datos.lazySet(i + 1, (long) (tipo & 0xFF) << 56 | (long) (flags & 0xFF) << 48
+                    | (long) (hilo & 0xFFFF) << 32 | (longitud & 0xFFFFFFFFL));
+            datos.lazySet(i + 2, (long) origen << 32 | (destino & 0xFFFFFFFFL));
+            datos.lazySet(i + 3, (long) seq << 32 | (ack & 0xFFFFFFFFL));
+            datos.lazySet(i + 4, (long) wnd << 32);
+            posicion.lazySet(p + 1);
+        }
+
+        void copiar(List<long[]> destino) {
+            int cap = mascara + 1;
+            long fin = posicion.get();
+            long inicio = Math.max(0, fin - cap);
+            long[][] copia = new long[(int) (fin - inicio)][];
+            for (long p = inicio; p < fin; p++) {
+                int i = (int) (p & mascara) * CAMPOS;
+                long[] e = new long[CAMPOS];
+                for (int k = 0; k < CAMPOS; k++) e[k] = datos.get(i + k);
+                copia[(int) (p - inicio)] = e;
+            }
+            // El escritor pudo reutilizar huecos durante la copia (incluido el que esté escribiendo)
+            long validos = Math.max(inicio, posicion.get() + 1 - cap);
+            for (long p = validos; p < fin; p++) destino.add(copia[(int) (p - inicio)]);
+        }
+    }
+}
\ No newline at end of file
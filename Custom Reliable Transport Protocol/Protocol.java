@@ -17,8 +17,13 @@ public class Protocol {
         this.network = network;
         this.activeSockets = new ArrayList<>();
 
-        // Inicia el hilo en segundo plano que procesa los paquetes entrantes
-        new Thread(new ReceiverTask()).start();
+        if (network.getScheduler() != null) {
+            // Modo simulado: la red entrega cada paquete como evento del reloj virtual
+            network.setReceptor(this::deliver);
+        } else {
+            // Inicia el hilo en segundo plano que procesa los paquetes entrantes
+            new Thread(new ReceiverTask()).start();
+        }
     }
 
     /** Registra un socket para que pueda recibir paquetes. */
@@ -59,6 +64,19 @@ public class Protocol {
         return null;
     }
 
+    /** Entrega un paquete recibido al socket destinatario. */
+    private void deliver(TCPSegment_v5 seg) {
+        // Identificación del destinatario
+        TSocket socket = getMatchingTSocket(seg.destPort, seg.sourcePort);
+
+        if (socket != null) {
+            // Entrega del paquete al socket para su procesamiento
+            socket.processReceivedSegment(seg);
+        } else {
+            // Paquete descartado: puerto cerrado o destino desconocido
+        }
+    }
+
     /**
      * Tarea en segundo plano ("El Cartero").
      * Lee continuamente de la red y reparte los paquetes a los sockets.
@@ -72,15 +90,7 @@ public class Protocol {
                     TCPSegment_v5 seg = network.receive();
 
                     if (seg != null) {
-                        // Identificación del destinatario
-                        TSocket socket = getMatchingTSocket(seg.destPort, seg.sourcePort);
-
-                        if (socket != null) {
-                            // Entrega del paquete al socket para su procesamiento
-                            socket.processReceivedSegment(seg);
-                        } else {
-                            // Paquete descartado: puerto cerrado o destino desconocido
-                        }
+                        deliver(seg);
                     }
                 } catch (Exception e) {
                     System.err.println("[PROTO] Error crítico en ReceiverTask: " + e.getMessage());
@@ -0,0 +1,35 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler con reloj de pared.
+ * Usa un único hilo demonio, igual que el antiguo java.util.Timer de cada TSocket,
+ * pero con resolución de nanosegundos.
+ */
+public class RealTimeScheduler implements Scheduler {
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public RealTimeScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "RealTimeScheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.setRemoveOnCancelPolicy(true); // No acumular RTOs cancelados
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public Task schedule(Runnable tarea, long retardo, TimeUnit unidad) {
+        ScheduledFuture<?> f = executor.schedule(tarea, retardo, unidad);
+        return () -> f.cancel(false);
+    }
+}
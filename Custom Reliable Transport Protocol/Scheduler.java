@@ -0,0 +1,22 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuente de tiempo y temporizadores del protocolo.
+ * Permite ejecutar el mismo código de TSocket/SimNet con reloj real
+ * (RealTimeScheduler) o con reloj virtual determinista (VirtualTimeScheduler).
+ */
+public interface Scheduler {
+
+    /** Tiempo actual en nanosegundos (solo útil para medir intervalos). */
+    long nanoTime();
+
+    /** Programa la ejecución de una tarea tras el retardo indicado. */
+    Task schedule(Runnable tarea, long retardo, TimeUnit unidad);
+
+    /** Tarea programada que todavía puede cancelarse. */
+    interface Task {
+        void cancel();
+    }
+}
@@ -1,13 +1,34 @@
 package tcppruebas.uni.TCP_v5;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import tcppruebas.uni.util.CircularQueue;
 
 /**
  * Simula una red de transmisión de paquetes.
  * Introduce pérdidas de paquetes de forma aleatoria para probar la robustez del protocolo.
+ * Como un cable real, copia cada segmento al aceptarlo: el receptor nunca comparte
+ * la carga útil con el buffer del emisor.
  * Utiliza una cola circular protegida por monitores para simular el medio físico.
+ *
+ * Modo simulado (constructor con VirtualTimeScheduler): no hay hilos ni bloqueos.
+ * Cada paquete ocupa el enlace durante TRANSMISION y tarda PROPAGACION en llegar;
+ * la entrega se programa como evento en el reloj virtual y las pérdidas salen del
+ * generador sembrado del simulador, así que cada ejecución es reproducible.
+ * Con la cola llena, el paquete espera su turno en orden de llegada, igual que
+ * un emisor bloqueado en modo tiempo real. Como allí, donde el hilo que espera no
+ * puede volver a enviar, un socket no acumula envíos redundantes: se descarta la
+ * retransmisión de un segmento que aún espera, y un ACK puro nuevo sustituye al
+ * que espera (son acumulativos). Sin esto, con miles de conexiones la cola crece
+ * con reenvíos y ACKs viejos hasta que la espera supera al RTO.
  */
 public class SimNet {
 
@@ -16,8 +37,29 @@ public class SimNet {
     private final Condition vcVacio; // Esperar si la red está vacía (Receive)
     private final Condition vcLleno; // Esperar si la red está saturada (Send)
     private final double lossRate;   // Probabilidad de pérdida (0.0 a 1.0)
+    private final Random random;
     
     private final int NET_CAPACITY = 10; // Capacidad máxima de paquetes en tránsito
+    private ExecutorService envioDiferido; // Hilo de los envíos que offer() no pudo hacer (se crea al primer uso)
+
+    // --- Modo simulado (reloj virtual) ---
+    private final VirtualTimeScheduler simulador; // null en modo tiempo real
+    private static final long TRANSMISION = TimeUnit.MICROSECONDS.toNanos(100); // Ocupación del enlace por paquete
+    private static final long PROPAGACION = TimeUnit.MILLISECONDS.toNanos(10); // Retardo de propagación
+    private Consumer<TCPSegment_v5> receptor; // Destino de las entregas simuladas (Protocol)
+    private long enlaceLibre = 0; // Instante virtual en que el enlace termina de transmitir la cola
+    private int enCola = 0;       // Paquetes esperando o transmitiéndose en el enlace
+    private final ArrayDeque<TCPSegment_v5> bloqueados = new ArrayDeque<>(); // Envíos esperando hueco en la cola
+    private final HashSet<Long> segmentosBloqueados = new HashSet<>(); // (puerto, seq) de los que ocupan secuencia
+    private final HashMap<Integer, TCPSegment_v5> acksBloqueados = new HashMap<>(); // ACK puro en espera, por puerto
+    private long descartesSaturacion = 0; // Envíos redundantes descartados en bloqueados
+
+    // --- Estadísticas de ocupación (en ambos modos) ---
+    private long inicioMedida = -1;   // Instante del primer paquete encolado
+    private long ultimaMedida;        // Instante del último cambio de ocupación
+    private long ocupacionArea = 0;   // Integral de la ocupación en el tiempo (paquetes * ns)
+    private long paquetesEncolados = 0;
+    private int ocupacionMaxima = 0;
 
     public SimNet(double lossRate) {
         this.queue = new CircularQueue<>(NET_CAPACITY);
@@ -25,6 +67,29 @@ public class SimNet {
         this.vcVacio = lock.newCondition();
         this.vcLleno = lock.newCondition(); 
         this.lossRate = lossRate;
+        this.random = new Random();
+        this.simulador = null;
+    }
+
+    /** Red simulada sobre reloj virtual: determinista para una semilla dada. */
+    public SimNet(double lossRate, VirtualTimeScheduler simulador) {
+        this.queue = null;
+        this.lock = new ReentrantLock();
+        this.vcVacio = null;
+        this.vcLleno = null;
+        this.lossRate = lossRate;
+        this.random = simulador.random();
+        this.simulador = simulador;
+    }
+
+    /** Reloj del simulador, o null si la red funciona en tiempo real. */
+    public Scheduler getScheduler() {
+        return simulador;
+    }
+
+    /** (Modo simulado) Registra quién recibe los paquetes entregados. */
+    public void setReceptor(Consumer<TCPSegment_v5> receptor) {
+        this.receptor = receptor;
     }
 
     /**
@@ -33,10 +98,16 @@ public class SimNet {
      * Puede descartar el paquete silenciosamente según el lossRate.
      */
     public void send(TCPSegment_v5 seg) {
+        if (simulador != null) {
+            sendSimulado(seg);
+            return;
+        }
+        trazar(PacketTrace.ENVIO, seg);
         lock.lock();
         try {
             // Simulación de pérdida de paquetes (capa física no fiable)
-            if (Math.random() <= lossRate) {
+            if (random.nextDouble() <= lossRate) {
+                trazar(PacketTrace.DESCARTE, seg);
                 return; // El paquete se "pierde" y no llega a la cola
             }
 
@@ -45,7 +116,9 @@ public class SimNet {
                 vcLleno.awaitUninterruptibly();
             }
 
-            queue.put(seg);
+            medirOcupacion();
+            queue.put(seg.copiaParaEntrega());
+            contarEncolado();
             vcVacio.signalAll(); // Avisar al receptor de que hay datos
 
         } finally {
@@ -53,6 +126,142 @@ public class SimNet {
         }
     }
 
+    /**
+     * Versión no bloqueante de send(): si la red está saturada descarta el paquete
+     * en lugar de esperar. La usa el hilo que reparte los paquetes recibidos, que
+     * es también el único que vacía la red y por tanto no puede bloquearse en ella.
+     *
+     * @return false si el paquete se descartó por falta de espacio
+     */
+    public boolean offer(TCPSegment_v5 seg) {
+        if (simulador != null) {
+            sendSimulado(seg); // Nunca bloquea: el envío espera su turno en el enlace
+            return true;
+        }
+        lock.lock();
+        try {
+            // Antes que la pérdida: si se rechaza, el reintento con send() no debe sortearla dos veces.
+            // Tampoco se traza: el paquete no se pierde, el llamante lo reenvía (y ese envío sí se traza)
+            if (queue.full()) return false;
+            trazar(PacketTrace.ENVIO, seg);
+            if (random.nextDouble() <= lossRate) { // Perdido en la red, no por saturación
+                trazar(PacketTrace.DESCARTE, seg);
+                return true;
+            }
+
+            medirOcupacion();
+            queue.put(seg.copiaParaEntrega());
+            contarEncolado();
+            vcVacio.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Envía sin bloquear al llamante: prueba con offer() y, si la red está saturada,
+     * delega el send() bloqueante en un hilo propio de SimNet (uno para toda la red,
+     * en orden de llegada). Así ni el hilo que vacía la red ni el temporizador de un
+     * socket, que también atiende sus RTO, se quedan esperando hueco.
+     */
+    public void sendSinEspera(TCPSegment_v5 seg) {
+        if (offer(seg)) return;
+        lock.lock();
+        try {
+            if (envioDiferido == null) {
+                envioDiferido = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "SimNet-envios");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+        envioDiferido.execute(() -> send(seg));
+    }
+
+    /** (Modo simulado) Equivalente no bloqueante de send(). */
+    private void sendSimulado(TCPSegment_v5 seg) {
+        trazar(PacketTrace.ENVIO, seg);
+        // Simulación de pérdida de paquetes (capa física no fiable)
+        if (random.nextDouble() <= lossRate) {
+            trazar(PacketTrace.DESCARTE, seg);
+            return;
+        }
+
+        // Control de congestión de la red física: sin hilos que bloquear, el envío espera en cola
+        if (enCola >= NET_CAPACITY && !esperarTurno(seg)) return;
+        TCPSegment_v5 copia = seg.copiaParaEntrega();
+        medirOcupacion();
+        if (enCola >= NET_CAPACITY) {
+            if (esAckPuro(copia)) {
+                acksBloqueados.put(copia.sourcePort, copia);
+            } else if (!copia.fec) {
+                segmentosBloqueados.add(clave(copia));
+            }
+            bloqueados.add(copia);
+        } else {
+            encolar(copia);
+        }
+        contarEncolado();
+    }
+
+    /** Pone el paquete en el enlace y programa su salida y su entrega. */
+    private void encolar(TCPSegment_v5 seg) {
+        long ahora = simulador.nanoTime();
+        enlaceLibre = Math.max(ahora, enlaceLibre) + TRANSMISION;
+        enCola++;
+        simulador.schedule(() -> {
+            medirOcupacion();
+            enCola--; // Sale del enlace y empieza a propagarse
+            simulador.schedule(() -> receptor.accept(seg), PROPAGACION, TimeUnit.NANOSECONDS);
+            if (!bloqueados.isEmpty()) { // Despertar al siguiente emisor
+                TCPSegment_v5 siguiente = bloqueados.poll();
+                if (esAckPuro(siguiente)) {
+                    acksBloqueados.remove(siguiente.sourcePort);
+                } else if (!siguiente.fec) {
+                    segmentosBloqueados.remove(clave(siguiente));
+                }
+                encolar(siguiente);
+            }
+        }, enlaceLibre - ahora, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * (Modo simulado, enlace lleno) Decide si el envío debe esperar en bloqueados.
+     * Un ACK puro se funde con el que ya espera de su socket, que pasa a llevar el
+     * ackNum y la ventana nuevos sin perder su turno.
+     *
+     * @return false si el envío sobra (ya descartado o fundido con otro)
+     */
+    private boolean esperarTurno(TCPSegment_v5 seg) {
+        if (esAckPuro(seg)) {
+            TCPSegment_v5 anterior = acksBloqueados.get(seg.sourcePort);
+            if (anterior == null) return true;
+            trazar(PacketTrace.SATURACION, anterior); // El ACK viejo ya no llegará
+            anterior.seqNum = seg.seqNum;
+            anterior.ackNum = seg.ackNum;
+            anterior.wnd = seg.wnd;
+        } else if (seg.fec || !segmentosBloqueados.contains(clave(seg))) {
+            return true;
+        } else {
+            trazar(PacketTrace.SATURACION, seg); // Retransmisión de un segmento que aún espera
+        }
+        descartesSaturacion++;
+        return false;
+    }
+
+    private static boolean esAckPuro(TCPSegment_v5 seg) {
+        return seg.ack && !seg.fec && !seg.syn && !seg.fin && seg.length() == 0;
+    }
+
+    /** Identifica un segmento del emisor: sus retransmisiones comparten clave. */
+    private static long clave(TCPSegment_v5 seg) {
+        return ((long) seg.sourcePort << 32) | (seg.seqNum & 0xFFFFFFFFL);
+    }
+
     /**
      * Extrae un segmento de la red.
      * Se bloquea si no hay paquetes viajando por la red.
@@ -64,6 +273,7 @@ public class SimNet {
                 vcVacio.awaitUninterruptibly();
             }
             
+            medirOcupacion();
             TCPSegment_v5 seg = queue.get();
             vcLleno.signalAll(); // Avisar al emisor de que hay espacio
             return seg;
@@ -71,4 +281,84 @@ public class SimNet {
             lock.unlock();
         }
     }
+
+    // =========================================================
+    //                 ESTADÍSTICAS DE OCUPACIÓN
+    // =========================================================
+
+    /**
+     * Paquetes retenidos en la red: en cola (tiempo real), o en el enlace más los
+     * envíos esperando hueco (modo simulado).
+     */
+    private int ocupacion() {
+        return simulador != null ? enCola + bloqueados.size() : queue.size();
+    }
+
+    /** Registra el evento en la traza binaria, si está activa. */
+    private void trazar(byte tipo, TCPSegment_v5 seg) {
+        if (PacketTrace.isActivo()) {
+            PacketTrace.registrar(tipo, seg, simulador != null ? simulador.nanoTime() : System.nanoTime());
+        }
+    }
+
+    /** Acumula la ocupación vigente hasta ahora. Llamar justo antes de cambiarla. */
+    private void medirOcupacion() {
+        long ahora = simulador != null ? simulador.nanoTime() : System.nanoTime();
+        if (inicioMedida < 0) {
+            inicioMedida = ahora;
+        } else {
+            ocupacionArea += ocupacion() * (ahora - ultimaMedida);
+        }
+        ultimaMedida = ahora;
+    }
+
+    private void contarEncolado() {
+        paquetesEncolados++;
+        ocupacionMaxima = Math.max(ocupacionMaxima, ocupacion());
+    }
+
+    /** Número medio de paquetes retenidos en la red, ponderado en el tiempo. */
+    public double getOcupacionMedia() {
+        lock.lock();
+        try {
+            long duracion = ultimaMedida - inicioMedida;
+            return inicioMedida < 0 || duracion == 0 ? 0 : (double) ocupacionArea / duracion;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Máximo de paquetes retenidos a la vez en la red. */
+    public int getOcupacionMaxima() {
+        lock.lock();
+        try {
+            return ocupacionMaxima;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** (Modo simulado) Retransmisiones y ACKs viejos descartados mientras esperaban hueco. */
+    public long getDescartesSaturacion() {
+        lock.lock();
+        try {
+            return descartesSaturacion;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tiempo medio que un paquete pasa retenido antes de salir hacia el destino (ns),
+     * sin contar la propagación. Por la ley de Little es el área de ocupación entre
+     * los paquetes encolados.
+     */
+    public double getRetardoMedioCola() {
+        lock.lock();
+        try {
+            return paquetesEncolados == 0 ? 0 : (double) ocupacionArea / paquetesEncolados;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versión de Testv5 sobre reloj virtual (simulación de eventos discretos).
+ * Lanza muchas conexiones cliente/servidor en paralelo sobre una misma SimNet;
+ * RTOs, red y aplicación avanzan en tiempo simulado, a velocidad de CPU,
+ * y la misma semilla reproduce exactamente la misma ejecución.
+ *
+ * Uso: Simulacionv5 [conexiones] [lossRate] [semilla] [bytesPorConexion] [fec] [pacing] [traza]
+ * donde fec es 0 (solo ARQ), el tamaño de grupo (1..16) o "auto" (adaptativo),
+ * pacing es 0 (ráfagas) o 1 (un Pacer compartido por todas las conexiones)
+ * y traza, si se indica, el fichero donde volcar la PacketTrace de la ejecución (ver TraceAnalyzer).
+ * Con la misma semilla, comparar fec=0 con fec>0 muestra el efecto sobre la latencia de cola,
+ * y pacing=0 con pacing=1 el efecto sobre la ocupación de SimNet y el RTT de los flujos que compiten.
+ */
+public class Simulacionv5 {
+
+    public static void main(String[] args) throws IOException {
+        int conexiones = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        double lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.2;
+        long semilla = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        int bytes = args.length > 3 ? Integer.parseInt(args[3]) : 600;
+        String fec = args.length > 4 ? args[4] : "0";
+        boolean fecAdaptativo = fec.equals("auto");
+        int fecGrupo = fecAdaptativo ? 4 : Integer.parseInt(fec);
+        boolean pacing = args.length > 5 && args[5].equals("1");
+        String traza = args.length > 6 ? args[6] : null;
+
+        TSocket.setVerbose(false); // Miles de conexiones: sin trazas por consola
+        if (traza != null) PacketTrace.activar(1 << 20); // Todo ocurre en el hilo del simulador
+
+        VirtualTimeScheduler sim = new VirtualTimeScheduler(semilla);
+        SimNet network = new SimNet(lossRate, sim);
+        Protocol protocol = new Protocol(network);
+        Pacer pacer = pacing ? new Pacer(network) : null;
+
+        byte[] datosAEnviar = new byte[bytes];
+        sim.random().nextBytes(datosAEnviar);
+
+        long[] duracion = new long[conexiones]; // Tiempo virtual hasta recibir todo (ns), -1 si no termina
+        Arrays.fill(duracion, -1);
+        int[] correctas = new int[1];
+        TSocket[] servidores = new TSocket[conexiones];
+        TSocket[] clientes = new TSocket[conexiones];
+
+        System.out.println("=== SIMULACIÓN: " + conexiones + " conexiones, loss=" + lossRate
+                + ", semilla=" + semilla + ", " + bytes + " bytes/conexión, fec=" + fec
+                + ", pacing=" + (pacing ? 1 : 0) + " ===");
+
+        for (int i = 0; i < conexiones; i++) {
+            final int id = i;
+            TSocket client = new TSocket(network, 1_000_000 + i);
+            TSocket server = new TSocket(network, 2_000_000 + i);
+            servidores[i] = server;
+            clientes[i] = client;
+            if (fecGrupo > 0) client.setFec(fecGrupo, fecAdaptativo);
+            if (pacing) client.setPacer(pacer);
+            protocol.addActiveTSocket(client);
+            protocol.addActiveTSocket(server);
+
+            // Arranques escalonados durante el primer segundo
+            long inicio = (long) (sim.random().nextDouble() * TimeUnit.SECONDS.toNanos(1));
+
+            // --- SERVIDOR: lee todo y cierra cuando el cliente cierra ---
+            ByteBuffer bufferRecep = ByteBuffer.allocate(bytes);
+            server.setListener(s -> {
+                long n;
+                while ((n = s.poll(bufferRecep)) > 0) { }
+                if (duracion[id] < 0 && !bufferRecep.hasRemaining()) {
+                    duracion[id] = sim.nanoTime() - inicio;
+                    if (Arrays.equals(bufferRecep.array(), datosAEnviar)) correctas[0]++;
+                }
+                // Con el buffer lleno poll() devuelve 0, no -1: el fin de flujo se ve en el estado
+                if (s.getState() == State.CLOSE_WAIT && (n < 0 || !bufferRecep.hasRemaining())) s.close();
+            });
+            server.startListen();
+
+            // --- CLIENTE: conecta, envía según la ventana y cierra al tener todo confirmado ---
+            ByteBuffer pendiente = ByteBuffer.wrap(datosAEnviar);
+            client.setListener(c -> {
+                if (c.getState() != State.ESTABLISHED) return;
+                if (pendiente.hasRemaining()) c.offer(pendiente);
+                if (!pendiente.hasRemaining() && c.areAllSegmentsConfirmed()) c.close();
+            });
+            sim.schedule(() -> client.startConnect(2_000_000 + id), inicio, TimeUnit.NANOSECONDS);
+        }
+
+        long t0 = System.nanoTime();
+        sim.run();
+        long pared = System.nanoTime() - t0;
+
+        long[] terminadas = Arrays.stream(duracion).filter(d -> d >= 0).sorted().toArray();
+        long firma = Arrays.hashCode(duracion); // Igual en cada repetición con la misma semilla
+
+        System.out.println("Completadas: " + terminadas.length + "/" + conexiones + " (íntegras: " + correctas[0] + ")");
+        if (terminadas.length > 0) {
+            System.out.printf("Duración por conexión (ms virtuales): p50=%.1f p99=%.1f max=%.1f%n",
+                    percentil(terminadas, 0.50), percentil(terminadas, 0.99), percentil(terminadas, 1.0));
+        }
+        int recuperados = 0;
+        for (TSocket s : servidores) recuperados += s.getFecRecuperados();
+        System.out.println("Segmentos reconstruidos por FEC: " + recuperados);
+        double rttTotal = 0;
+        int conRtt = 0;
+        for (TSocket c : clientes) {
+            if (c.getRttSuavizado() > 0) {
+                rttTotal += c.getRttSuavizado();
+                conRtt++;
+            }
+        }
+        System.out.printf("Ocupación de SimNet: media=%.2f max=%d paquetes | espera media en red=%.2f ms | RTT suavizado medio=%.1f ms%n",
+                network.getOcupacionMedia(), network.getOcupacionMaxima(), network.getRetardoMedioCola() / 1e6,
+                conRtt == 0 ? 0 : rttTotal / conRtt / 1e6);
+        System.out.println("Descartes por saturación de SimNet: " + network.getDescartesSaturacion());
+        System.out.printf("Tiempo simulado: %.1f s | tiempo real: %.0f ms | eventos: %d%n",
+                sim.nanoTime() / 1e9, pared / 1e6, sim.getEventosEjecutados());
+        System.out.println("Firma de la ejecución: " + Long.toHexString(firma));
+        if (traza != null) {
+            System.out.println("Traza: " + PacketTrace.volcar(Paths.get(traza)) + " eventos en " + traza);
+        }
+    }
+
+    private static double percentil(long[] ordenados, double p) {
+        int idx = (int) Math.ceil(p * ordenados.length) - 1;
+        return ordenados[Math.max(0, idx)] / 1e6;
+    }
+}
@@ -1,5 +1,7 @@
 package tcppruebas.uni.TCP_v5;
 
+import java.nio.ByteBuffer;
+
 /**
  * Representa un segmento TCP (Unidad de datos del protocolo).
  * Contiene las cabeceras de control y el payload de datos.
@@ -11,22 +13,61 @@ public class TCPSegment_v5 {
     public boolean fin; // Finish: Solicitud de fin de conexión
     public boolean psh; // Push: Indica que el segmento contiene datos de aplicación
     public boolean ack; // Acknowledgment: Indica que el campo ackNum es válido
+    public boolean fec; // Paridad FEC: data es el XOR de un grupo de segmentos que empieza en seqNum
 
     // --- Control de Flujo y Fiabilidad ---
     public int seqNum;  // Número de secuencia del primer byte de datos de este segmento
     public int ackNum;  // Número de secuencia del siguiente byte que se espera recibir
-    public int wnd;     // Ventana de recepción: espacio libre actual en el buffer del receptor
+    public int wnd;     // Ventana de recepción: huecos libres (segmentos) en la cola del receptor
     
     // --- Carga útil ---
-    public byte[] data; // Datos de la aplicación (Payload)
+    // En el emisor es una vista (slice) de solo lectura sobre el buffer de la aplicación, sin copia;
+    // el receptor recibe de SimNet una copia propia (ver copiaParaEntrega).
+    // Los lectores deben trabajar sobre un duplicate() para no mover su posición.
+    public ByteBuffer data; // Datos de la aplicación (Payload)
+
+    // --- Corrección de errores (solo en segmentos de paridad) ---
+    public int[] fecLongitudes; // Longitud de cada segmento del grupo, en orden de secuencia
 
     // --- Direccionamiento ---
     public int sourcePort; // Puerto del emisor
     public int destPort;   // Puerto del receptor
 
+    private static final ByteBuffer SIN_DATOS = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
     /** Constructor por defecto: Inicializa un segmento vacío sin datos. */
     public TCPSegment_v5() {
-        this.data = new byte[0];
+        this.data = SIN_DATOS;
+    }
+
+    /**
+     * Copia del segmento tal y como viaja por el cable: cabecera y carga útil propias,
+     * independientes del buffer del emisor, que puede reutilizarse en cuanto se confirme.
+     */
+    public TCPSegment_v5 copiaParaEntrega() {
+        TCPSegment_v5 copia = new TCPSegment_v5();
+        copia.syn = syn;
+        copia.fin = fin;
+        copia.psh = psh;
+        copia.ack = ack;
+        copia.fec = fec;
+        copia.seqNum = seqNum;
+        copia.ackNum = ackNum;
+        copia.wnd = wnd;
+        copia.fecLongitudes = fecLongitudes;
+        copia.sourcePort = sourcePort;
+        copia.destPort = destPort;
+        if (length() > 0) {
+            ByteBuffer d = ByteBuffer.allocate(length());
+            d.put(data.duplicate()).flip();
+            copia.data = d.asReadOnlyBuffer();
+        }
+        return copia;
+    }
+
+    /** Longitud en bytes de la carga útil. */
+    public int length() {
+        return data.remaining();
     }
     
     /** Devuelve una representación en texto del segmento para facilitar la depuración. */
@@ -37,7 +78,8 @@ public class TCPSegment_v5 {
         if (fin) flags += "FIN ";
         if (psh) flags += "PSH ";
         if (ack) flags += "ACK ";
+        if (fec) flags += "FEC ";
         return String.format("[%s src=%d dst=%d seq=%d ack=%d wnd=%d len=%d]", 
-                flags.trim(), sourcePort, destPort, seqNum, ackNum, wnd, data.length);
+                flags.trim(), sourcePort, destPort, seqNum, ackNum, wnd, length());
     }
 }
\ No newline at end of file
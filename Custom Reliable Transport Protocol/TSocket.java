@@ -1,9 +1,21 @@
 package tcppruebas.uni.TCP_v5;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import tcppruebas.uni.util.CircularQueue;
@@ -16,24 +28,41 @@ import tcppruebas.uni.util.CircularQueue;
  * - Control de Flujo (Ventana Deslizante).
  * - Ordenación de paquetes (Buffer de desordenados).
  * - Thread-safe mediante Monitores (Locks y Conditions).
+ * - Temporizadores sobre un Scheduler: reloj real o virtual (simulación determinista).
+ * - FEC opcional: paridad XOR por grupos para recuperar pérdidas sin esperar al RTO.
+ * - Pacing opcional: los segmentos salen espaciados a ritmo ventana/RTT (ver Pacer).
+ *
+ * Concurrencia: el lado emisor (snd_*, retransmisión, RTO) y el lado receptor
+ * (rcv_next, colas de recepción) tienen monitores separados, de modo que escritor,
+ * lector, ACKs entrantes y temporizador de un mismo socket avanzan en paralelo.
+ * sndLock y rcvLock nunca se anidan; el lock de conexión solo protege los cambios
+ * de estado y puede tomarse con cualquiera de los dos. Ningún envío a la red se
+ * hace con un lock tomado: los segmentos se preparan dentro y se envían al salir.
+ *
+ * En modo simulado todo se ejecuta en el hilo del simulador, así que la aplicación
+ * debe usar la API no bloqueante (startConnect, startListen, offer, poll) y reaccionar
+ * a los avisos de un TSocketListener.
  */
 public class TSocket {
 
     private final SimNet network;
     private final int localPort;
-    private int remotePort;
+    private volatile int remotePort;
 
     // --- Monitores para sincronización ---
-    protected final ReentrantLock lock = new ReentrantLock();
-    protected final Condition esperoAck = lock.newCondition();      // Bloqueo del emisor si la ventana está llena
-    protected final Condition dataDisponible = lock.newCondition(); // Bloqueo del receptor si no hay datos
-    protected final Condition esperoConexion = lock.newCondition(); // Bloqueo durante el handshake
+    protected final ReentrantLock lock = new ReentrantLock();          // Conexión (cambios de estado)
+    protected final ReentrantLock sndLock = new ReentrantLock();       // Lado emisor
+    protected final ReentrantLock rcvLock = new ReentrantLock();       // Lado receptor
+    protected final Condition esperoAck = sndLock.newCondition();      // Bloqueo del emisor si la ventana está llena
+    protected final Condition dataDisponible = rcvLock.newCondition(); // Bloqueo del receptor si no hay datos
+    protected final Condition esperoConexion = lock.newCondition();    // Bloqueo durante el handshake
 
     // --- Variables de Estado del Protocolo (Sliding Window) ---
-    private int snd_next;   // Siguiente número de secuencia a enviar
-    private int snd_unack;  // Número de secuencia del paquete más antiguo sin confirmar
-    private int rcv_next;   // Siguiente número de secuencia que se espera recibir
-    private int snd_wnd;    // Ventana anunciada por el receptor remoto
+    private int snd_next;            // Siguiente número de secuencia a enviar
+    private int snd_unack;           // Número de secuencia del paquete más antiguo sin confirmar
+    private volatile int rcv_next;   // Siguiente número de secuencia que se espera recibir
+    private int snd_wnd;             // Ventana anunciada por el receptor remoto (segmentos)
+    private volatile int rcv_wnd;    // Ventana que anunciamos (huecos libres en rcvQueue)
 
     // --- Estructuras de Memoria ---
     // Almacena copias de los segmentos enviados esperando ACK (para retransmitir)
@@ -42,52 +71,80 @@ public class TSocket {
     private TreeMap<Integer, TCPSegment_v5> out_of_order_segs = new TreeMap<>();
 
     // --- Gestión de Temporizadores (ARQ) ---
-    private Timer timerService = new Timer(true);
-    private TimerTask sndRtTimer = null;
+    private final Scheduler timerService; // Reloj real propio, o el del simulador
+    private final boolean simulado;
+    private Scheduler.Task sndRtTimer = null;
     private final long RTO = 500; // Retransmission TimeOut (ms)
 
     private int retransmissionCount = 0;
     private final int MAX_RETRIES = 5; // Límite de intentos antes de abortar
+    private boolean sondaPermitida = false; // Ventana 0: el temporizador autoriza una sonda (persist)
+
+    // --- Medida de RTT y Pacing ---
+    private static final double GANANCIA_PACING = 1.25; // Ritmo algo superior a ventana/RTT para no frenar al ACK-clock
+    private long srtt = 0;          // RTT suavizado (ns), 0 mientras no haya muestras
+    private int rttSeq = -1;        // Segmento cronometrado (uno a la vez), -1 si ninguno
+    private long rttInicio;         // Instante de salida del segmento cronometrado
+    private Pacer pacer;            // null = sin pacing, envío inmediato
+    private long proximaSalida = 0; // Instante a partir del cual puede salir el siguiente segmento
 
     // --- Configuración ---
     private final CircularQueue<TCPSegment_v5> rcvQueue; // Buffer de recepción para la aplicación
+    private ByteBuffer segmentoEnLectura; // Resto de un segmento consumido parcialmente por la aplicación
     private final int capacidadColaRecepcion = 50;
     private final int MSS = 30; // Maximum Segment Size
+    private static final int REGION_MAPEO = 8 * 1024 * 1024; // Tamaño máximo de cada región de fichero mapeada (envío)
+
+    private volatile State state; // Estado actual de la máquina de estados
+    private volatile boolean finEnFinWait = false; // El FIN remoto llegó con close() ya en curso: cerrar del todo
+
+    // --- Corrección de errores (FEC, paridad XOR) ---
+    private static final int MAX_GRUPO_FEC = 16;
+    private int fecGrupo = 0;             // Segmentos de datos por paridad (0 = desactivado)
+    private boolean fecAdaptativo = false;
+    private double perdidaEstimada = 0.1; // Media móvil de retransmisiones por segmento enviado
+    private final byte[] fecParidad = new byte[MSS]; // XOR acumulado del grupo en curso
+    private final int[] fecLongitudes = new int[MAX_GRUPO_FEC];
+    private int fecBase;                  // seqNum del primer segmento del grupo en curso
+    private int fecN = 0;                 // Segmentos acumulados en el grupo en curso
+    // Receptor: cargas útiles recientes (vistas, sin copia) y paridades pendientes de usar
+    private final TreeMap<Integer, ByteBuffer> fecRecibidos = new TreeMap<>();
+    private final TreeMap<Integer, TCPSegment_v5> fecParidades = new TreeMap<>();
+    private int fecRecuperados = 0;
 
-    private State state; // Estado actual de la máquina de estados
+    // --- Modo no bloqueante ---
+    private volatile TSocketListener listener;
+    private volatile boolean avisoPendiente = false; // Agrupa varios cambios en un solo aviso
+
+    private static volatile boolean verbose = true; // Trazas por consola de cada segmento
 
     public TSocket(SimNet network, int localPort) {
         this.network = network;
         this.localPort = localPort;
+        this.simulado = network.getScheduler() != null;
+        this.timerService = simulado ? network.getScheduler() : new RealTimeScheduler();
         this.rcvQueue = new CircularQueue<>(capacidadColaRecepcion);
         this.state = State.CLOSED;
         this.snd_next = 0;
         this.snd_unack = 0;
         this.rcv_next = 0;
         this.snd_wnd = 1;
+        this.rcv_wnd = capacidadColaRecepcion;
     }
 
     // =========================================================
     //                 GESTIÓN DE TIMEOUTS (ARQ)
     // =========================================================
 
-    /** Inicia o reinicia el temporizador de retransmisión. */
+    /** Inicia o reinicia el temporizador de retransmisión. Requiere sndLock. */
     private void startRTO() {
         if (state == State.CLOSED) return;
         if (sndRtTimer != null) sndRtTimer.cancel();
 
-        sndRtTimer = new TimerTask() {
-            @Override
-            public void run() {
-                timeout();
-            }
-        };
-        try {
-            timerService.schedule(sndRtTimer, RTO);
-        } catch (IllegalStateException e) { }
+        sndRtTimer = timerService.schedule(this::timeout, RTO, TimeUnit.MILLISECONDS);
     }
 
-    /** Detiene el temporizador. */
+    /** Detiene el temporizador. Requiere sndLock. */
     private void stopRTO() {
         if (sndRtTimer != null) {
             sndRtTimer.cancel();
@@ -100,7 +157,9 @@ public class TSocket {
      * Retransmite el segmento más antiguo no confirmado.
      */
     private void timeout() {
-        lock.lock();
+        TCPSegment_v5 reenviar = null;
+        boolean abortada = false;
+        sndLock.lock();
         try {
             if (state == State.CLOSED) {
                 stopRTO();
@@ -112,26 +171,41 @@ public class TSocket {
                 // Verificar límite de reintentos para evitar bucles infinitos
                 if (retransmissionCount >= MAX_RETRIES) {
                     System.err.println("   [!!!] TIMEOUT: Demasiados intentos. Cerrando conexión forzosamente.");
-                    state = State.CLOSED;
+                    setState(State.CLOSED);
                     stopRTO();
                     esperoAck.signalAll(); // Liberar hilos bloqueados
+                    avisarListener();
+                    abortada = true;
                     return;
                 }
 
                 // Retransmitir
                 TCPSegment_v5 seg = unackedSegments.get(snd_unack);
                 if (seg != null) {
-                    System.out.println("   [!!!] TIMEOUT: Retransmitiendo seq=" + seg.seqNum + " (Intento " + (retransmissionCount + 1) + ")");
-                    network.send(seg);
+                    log("   [!!!] TIMEOUT: Retransmitiendo seq=" + seg.seqNum + " (Intento " + (retransmissionCount + 1) + ")");
+                    perdidaEstimada += (1 - perdidaEstimada) / 16;
+                    rttSeq = -1; // Algoritmo de Karn: no medir RTT sobre retransmisiones
+                    reenviar = seg;
+                    trazar(PacketTrace.RETRANSMISION, seg);
                     retransmissionCount++;
                     startRTO(); // Reiniciar cuenta atrás
                 }
+            } else {
+                sndRtTimer = null; // Nada en vuelo: ya no queda temporizador armado
+                if (snd_wnd == 0) {
+                    // Temporizador de persistencia: la actualización de ventana no llegó, sondear
+                    sondaPermitida = true;
+                    esperoAck.signalAll();
+                    avisarListener();
+                }
             }
         } catch (Exception e) {
             System.err.println("[TIMER] Error: " + e.getMessage());
         } finally {
-            lock.unlock();
+            sndLock.unlock();
+            if (abortada) despertarLectores();
         }
+        if (reenviar != null) network.send(reenviar);
     }
 
     // =========================================================
@@ -140,12 +214,23 @@ public class TSocket {
 
     /** (Cliente) Inicia la conexión con el servidor (3-Way Handshake). */
     public void connect(int remotePort) {
+        startConnect(remotePort);
+
+        // 2. Esperar a que la conexión se establezca (SYN+ACK recibido)
+        esperarConexion();
+    }
+
+    /**
+     * (Cliente, no bloqueante) Envía el SYN y vuelve inmediatamente.
+     * El listener recibe un aviso cuando la conexión queda establecida.
+     */
+    public void startConnect(int remotePort) {
+        TCPSegment_v5 seg = new TCPSegment_v5();
+        sndLock.lock();
         try {
-            lock.lock();
             this.remotePort = remotePort;
-            
+
             // 1. Enviar SYN
-            TCPSegment_v5 seg = new TCPSegment_v5();
             seg.syn = true;
             seg.sourcePort = localPort;
             seg.destPort = remotePort;
@@ -153,146 +238,371 @@ public class TSocket {
 
             unackedSegments.put(snd_next, seg);
             retransmissionCount = 0;
+            rttSeq = snd_next;
+            rttInicio = timerService.nanoTime();
 
-            state = State.SYN_SENT; // Cambio de estado antes de enviar
-            System.out.println("[CLIENT]: Iniciando conexión (SYN)...");
+            setState(State.SYN_SENT); // Cambio de estado antes de enviar
+            log("[CLIENT]: Iniciando conexión (SYN)...");
 
-            network.send(seg);
             startRTO();
-
             snd_next++;
-
-            // 2. Esperar a que la conexión se establezca (SYN+ACK recibido)
-            while (state != State.ESTABLISHED) {
-                esperoConexion.awaitUninterruptibly();
-            }
-            stopRTO();
         } finally {
-            lock.unlock();
+            sndLock.unlock();
         }
+        network.send(seg);
     }
 
     /** (Servidor) Espera pasivamente a recibir una conexión. */
     public void listen() {
-        try {
-            lock.lock();
-            state = State.LISTEN;
-            System.out.println("[SERVER]: Escuchando en puerto " + localPort + "...");
-            
-            // Bloqueo hasta completar el handshake
-            while (state != State.ESTABLISHED) {
-                esperoConexion.awaitUninterruptibly();
-            }
-            System.out.println("[SERVER]: ¡Conexión ESTABLECIDA!");
-        } finally {
-            lock.unlock();
-        }
+        startListen();
+
+        // Bloqueo hasta completar el handshake
+        esperarConexion();
+        log("[SERVER]: ¡Conexión ESTABLECIDA!");
+    }
+
+    /** (Servidor, no bloqueante) Pasa a LISTEN y vuelve inmediatamente. */
+    public void startListen() {
+        setState(State.LISTEN);
+        log("[SERVER]: Escuchando en puerto " + localPort + "...");
     }
 
     /**
      * Envía datos a través de la conexión.
      * Utiliza Ventana Deslizante y bloquea si no hay espacio en la ventana.
+     * Copia los datos, así que el array puede reutilizarse en cuanto el método
+     * vuelve; para enviar sin copias, {@link #write(ByteBuffer...)}.
      */
     public void sendData(byte[] datosAtransmitir) {
-        int offset = 0;
-        lock.lock();
+        write(ByteBuffer.wrap(datosAtransmitir.clone()));
+    }
+
+    /**
+     * Escritura "gather": envía el contenido restante de cada buffer, en orden.
+     * Cada segmento es un slice de solo lectura del buffer original (sin copias),
+     * por lo que admite buffers directos. Las retransmisiones leen de ese buffer,
+     * así que no debe modificarse hasta que sea confirmado
+     * (ver {@link #awaitAllSegmentsConfirmed()}); el receptor trabaja sobre su propia copia.
+     *
+     * @return bytes enviados (menos de los pedidos si la conexión se cierra)
+     */
+    public long write(ByteBuffer... srcs) {
+        return escribir(srcs, true);
+    }
+
+    /**
+     * Versión no bloqueante de {@link #write(ByteBuffer...)}: envía solo lo que
+     * cabe en la ventana actual y devuelve los bytes aceptados.
+     */
+    public long offer(ByteBuffer... srcs) {
+        return escribir(srcs, false);
+    }
+
+    private long escribir(ByteBuffer[] srcs, boolean bloquear) {
+        long enviados = 0;
+        List<TCPSegment_v5> salida = new ArrayList<>(2); // Preparados con el lock, enviados sin él
         try {
-            while (offset < datosAtransmitir.length) {
-                // Cálculo de la ventana efectiva
-                int bytesEnVuelo = snd_next - snd_unack;
-                int ventanaEfectiva = snd_wnd - bytesEnVuelo;
-
-                // Bloqueo si la ventana está llena (Control de Flujo)
-                while (ventanaEfectiva <= 0) {
-                    if (snd_wnd == 0) {
-                        ventanaEfectiva = 1; // Modo sonda (Probe) para desbloquear ventana 0
-                        break;
-                    }
+            for (ByteBuffer src : srcs) {
+                while (src.hasRemaining()) {
+                    sndLock.lock();
                     try {
-                        esperoAck.await(); // Esperar ACK que libere ventana
-                        if (state == State.CLOSED) return;
-                        
-                        bytesEnVuelo = snd_next - snd_unack;
-                        ventanaEfectiva = snd_wnd - bytesEnVuelo;
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                }
+                        // Cálculo de la ventana efectiva, en segmentos: cada segmento ocupa un hueco
+                        // de rcvQueue lleve un byte o el MSS, así que muchas escrituras pequeñas
+                        // no pueden desbordar la cola del receptor
+                        int enVuelo = unackedSegments.size();
+                        int ventanaEfectiva = snd_wnd - enVuelo;
 
-                // Segmentación (MSS)
-                int aEnviar = Math.min(datosAtransmitir.length - offset, Math.min(MSS, ventanaEfectiva));
-                byte[] fragmento = new byte[aEnviar];
-                System.arraycopy(datosAtransmitir, offset, fragmento, 0, aEnviar);
-
-                // Creación del segmento
-                TCPSegment_v5 segmento = new TCPSegment_v5();
-                segmento.sourcePort = localPort;
-                segmento.destPort = remotePort;
-                segmento.seqNum = snd_next;
-                segmento.data = fragmento;
-                segmento.psh = true; // Push flag para datos
-                segmento.ack = true; // Piggybacking del ACK
-                segmento.ackNum = rcv_next;
-                segmento.wnd = getRcvWindow();
-
-                // Almacenar para posibles retransmisiones
-                unackedSegments.put(snd_next, segmento);
-                retransmissionCount = 0;
+                        // Bloqueo si la ventana está llena (Control de Flujo)
+                        while (ventanaEfectiva <= 0) {
+                            if (enVuelo == 0 && sondaPermitida) {
+                                sondaPermitida = false; // Modo sonda (Probe) para desbloquear ventana 0
+                                break;
+                            }
+                            // Ventana 0 sin nada en vuelo: esperar la actualización, y sondear si no llega en un RTO
+                            if (enVuelo == 0 && sndRtTimer == null) startRTO();
+                            if (!bloquear) return enviados;
+                            comprobarBloqueo();
+                            try {
+                                esperoAck.await(); // Esperar ACK que libere ventana
+                                if (state == State.CLOSED) return enviados;
+
+                                enVuelo = unackedSegments.size();
+                                ventanaEfectiva = snd_wnd - enVuelo;
+                            } catch (InterruptedException e) {
+                                return enviados;
+                            }
+                        }
+
+                        // Segmentación (MSS): el fragmento es una vista sobre src, no una copia
+                        int aEnviar = Math.min(src.remaining(), MSS);
+                        ByteBuffer fragmento = src.slice();
+                        fragmento.limit(aEnviar);
+                        src.position(src.position() + aEnviar);
+
+                        // Creación del segmento
+                        TCPSegment_v5 segmento = new TCPSegment_v5();
+                        segmento.sourcePort = localPort;
+                        segmento.destPort = remotePort;
+                        segmento.seqNum = snd_next;
+                        segmento.data = fragmento.asReadOnlyBuffer();
+                        segmento.psh = true; // Push flag para datos
+                        segmento.ack = true; // Piggybacking del ACK
+                        segmento.ackNum = rcv_next;
+                        segmento.wnd = getRcvWindow();
 
-                if (snd_next == snd_unack) startRTO(); // Iniciar timer si es el primer paquete en vuelo
+                        // Almacenar para posibles retransmisiones
+                        unackedSegments.put(snd_next, segmento);
+                        retransmissionCount = 0;
 
-                System.out.println("[SND]: Enviando seq=" + snd_next + " (" + aEnviar + " bytes).");
-                network.send(segmento);
+                        if (snd_next == snd_unack) startRTO(); // Iniciar timer si es el primer paquete en vuelo
 
-                snd_next += aEnviar;
-                offset += aEnviar;
+                        log("[SND]: Enviando seq=" + snd_next + " (" + aEnviar + " bytes).");
+                        despachar(segmento, salida);
+                        if (fecGrupo > 0) acumularParidad(segmento, salida);
+
+                        snd_next += aEnviar;
+                        enviados += aEnviar;
+                    } finally {
+                        sndLock.unlock();
+                    }
+                    // Fuera del lock: con la red saturada no se retienen ACKs ni temporizador
+                    enviar(salida);
+                }
+            }
+            // Fin de la ráfaga: proteger también el último grupo incompleto
+            sndLock.lock();
+            try {
+                if (fecN > 0) despachar(emitirParidad(), salida);
+            } finally {
+                sndLock.unlock();
             }
         } finally {
-            lock.unlock();
+            enviar(salida);
         }
+        return enviados;
     }
 
     /**
      * Lee datos recibidos.
-     * Bloquea si no hay datos disponibles en el buffer.
+     * Bloquea hasta llenar el array o hasta que el otro extremo cierre.
      */
     public int receiveData(byte[] datosAguardar) {
-        int bytesLeidos = 0;
-        lock.lock();
+        ByteBuffer destino = ByteBuffer.wrap(datosAguardar);
+        while (destino.hasRemaining()) {
+            if (read(destino) < 0) break; // Si el otro lado cerró, terminamos
+        }
+        return destino.position();
+    }
+
+    /**
+     * Lectura "scatter": reparte los datos recibidos entre los buffers, en orden.
+     * Bloquea solo hasta que haya algún dato disponible y después devuelve lo que
+     * haya en cola sin esperar más (semántica de canal NIO). Los datos se copian
+     * una única vez, del segmento al buffer destino (que puede ser directo).
+     *
+     * @return bytes leídos, o -1 si el otro extremo cerró (o la conexión se abortó) y no quedan datos
+     */
+    public long read(ByteBuffer... dsts) {
+        return leer(dsts, true);
+    }
+
+    /**
+     * Versión no bloqueante de {@link #read(ByteBuffer...)}.
+     *
+     * @return bytes leídos (0 si no hay datos), o -1 si el otro extremo cerró o la conexión está cerrada
+     */
+    public long poll(ByteBuffer... dsts) {
+        return leer(dsts, false);
+    }
+
+    private long leer(ByteBuffer[] dsts, boolean bloquear) {
+        long pedidos = 0;
+        for (ByteBuffer dst : dsts) pedidos += dst.remaining();
+        if (pedidos == 0) return 0;
+
+        long leidos = 0;
+        boolean anunciarVentana = false;
         try {
-            while (bytesLeidos < datosAguardar.length) {
+            rcvLock.lock();
+            try {
                 // Si la cola está vacía, esperar
-                if (rcvQueue.empty()) {
-                    if (state == State.CLOSE_WAIT) break; // Si el otro lado cerró, terminamos
+                while (segmentoEnLectura == null && rcvQueue.empty()) {
+                    if (state == State.CLOSE_WAIT || state == State.CLOSED) return -1;
+                    if (!bloquear) return 0;
+                    comprobarBloqueo();
                     dataDisponible.awaitUninterruptibly();
                 }
-                if (rcvQueue.empty()) continue;
 
-                // Consumir datos de la cola circular
-                TCPSegment_v5 seg = rcvQueue.get();
-                int aCopiar = Math.min(datosAguardar.length - bytesLeidos, seg.data.length);
-                System.arraycopy(seg.data, 0, datosAguardar, bytesLeidos, aCopiar);
-                bytesLeidos += aCopiar;
+                for (ByteBuffer dst : dsts) {
+                    while (dst.hasRemaining()) {
+                        if (segmentoEnLectura == null) {
+                            if (rcvQueue.empty()) return leidos;
+                            // duplicate(): FEC puede seguir usando la carga útil del segmento
+                            segmentoEnLectura = rcvQueue.get().data.duplicate();
+                            actualizarVentana();
+
+                            // Enviar ACK de actualización de ventana (al soltar el lock)
+                            if (rcvQueue.empty()) anunciarVentana = true;
+                        }
+
+                        int aCopiar = Math.min(dst.remaining(), segmentoEnLectura.remaining());
+                        ByteBuffer trozo = segmentoEnLectura.duplicate();
+                        trozo.limit(trozo.position() + aCopiar);
+                        dst.put(trozo);
+                        segmentoEnLectura.position(trozo.position());
+                        leidos += aCopiar;
 
-                // Enviar ACK de actualización de ventana
-                if (rcvQueue.empty()) sendAck();
+                        if (!segmentoEnLectura.hasRemaining()) segmentoEnLectura = null;
+                    }
+                }
+            } finally {
+                rcvLock.unlock();
             }
         } finally {
-            lock.unlock();
+            if (anunciarVentana) network.send(crearAck());
         }
-        return bytesLeidos;
+        return leidos;
+    }
+
+    /** Adaptador NIO (ByteChannel con scatter/gather) sobre este socket. */
+    public TSocketChannel getChannel() {
+        return new TSocketChannel(this);
+    }
+
+    /** Adaptador java.io para lectura. Cerrar el stream cierra la conexión. */
+    public InputStream getInputStream() {
+        return Channels.newInputStream(getChannel());
+    }
+
+    /** Adaptador java.io para escritura. Cerrar el stream cierra la conexión. */
+    public OutputStream getOutputStream() {
+        return Channels.newOutputStream(getChannel());
     }
 
-    /** Cierra la conexión enviando un paquete FIN. */
+    // =========================================================
+    //             TRANSFERENCIA DE FICHEROS (mmap)
+    // =========================================================
+
+    /**
+     * Envía un fichero mapeándolo en memoria por regiones.
+     * Los segmentos son vistas sobre el mapeo, así que las retransmisiones se
+     * sirven directamente del fichero y el heap no crece con su tamaño.
+     * Solo retorna cuando todo lo enviado está confirmado (o la conexión se ha
+     * cerrado): a partir de ahí ningún segmento lee del mapeo y el fichero puede
+     * modificarse o truncarse.
+     *
+     * @return bytes enviados (menos que el tamaño si la conexión se cierra)
+     */
+    public long sendFile(Path fichero) throws IOException {
+        long enviados = 0;
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+            long tamaño = canal.size();
+            int siguiente;
+            sndLock.lock();
+            try {
+                siguiente = snd_next;
+            } finally {
+                sndLock.unlock();
+            }
+            // Los números de secuencia son int: los datos deben dejar libre uno para el FIN
+            if (tamaño >= Integer.MAX_VALUE - siguiente) {
+                throw new IOException("Fichero demasiado grande para el espacio de secuencia: " + tamaño + " bytes");
+            }
+            while (enviados < tamaño) {
+                long longitud = Math.min(REGION_MAPEO, tamaño - enviados);
+                // El mapeo sigue siendo válido tras cerrar el canal, mientras haya segmentos que lo referencien
+                MappedByteBuffer region = canal.map(FileChannel.MapMode.READ_ONLY, enviados, longitud);
+                long n = write(region);
+                enviados += n;
+                if (n < longitud) break; // Conexión cerrada
+            }
+        }
+        // Las retransmisiones se sirven del mapeo: truncar el fichero antes de la confirmación las haría fallar
+        awaitAllSegmentsConfirmed();
+        return enviados;
+    }
+
+    /**
+     * Recibe todo el flujo hasta que el otro extremo cierre y lo escribe en un fichero.
+     * Cada vez que hay datos se retiran de golpe todos los segmentos en cola y se
+     * escriben con una escritura "gather" (FileChannel.write): una única copia, de
+     * la carga útil de cada segmento al fichero, sin arrays intermedios. La cola
+     * se vacía entera en cada pasada, así que la ventana anunciada se reabre al máximo.
+     *
+     * @return bytes recibidos
+     */
+    public long receiveToFile(Path fichero) throws IOException {
+        long recibidos = 0;
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer[] segmentos;
+            while ((segmentos = retirarSegmentos()) != null) { // null: fin de flujo (FIN recibido)
+                long pendientes = 0;
+                for (ByteBuffer b : segmentos) pendientes += b.remaining();
+                while (pendientes > 0) {
+                    long n = canal.write(segmentos);
+                    pendientes -= n;
+                    recibidos += n;
+                }
+            }
+        }
+        return recibidos;
+    }
+
+    /**
+     * Bloquea hasta que haya datos y retira de rcvQueue todos los segmentos en cola,
+     * sin copiarlos: el llamante escribe directamente sus cargas útiles.
+     *
+     * @return vistas sobre los datos retirados, o null si el flujo terminó y no queda nada
+     */
+    private ByteBuffer[] retirarSegmentos() {
+        List<ByteBuffer> datos = new ArrayList<>();
+        boolean anunciarVentana = false;
+        try {
+            rcvLock.lock();
+            try {
+                while (segmentoEnLectura == null && rcvQueue.empty()) {
+                    if (state == State.CLOSE_WAIT || state == State.CLOSED) return null;
+                    comprobarBloqueo();
+                    dataDisponible.awaitUninterruptibly();
+                }
+
+                if (segmentoEnLectura != null) {
+                    datos.add(segmentoEnLectura);
+                    segmentoEnLectura = null;
+                }
+                // Anunciar la ventana reabierta (al soltar el lock) solo si crece al menos media cola:
+                // con menos, el último ACK ya dejaba ventana de sobra y el siguiente lleva la nueva
+                anunciarVentana = rcvQueue.size() >= capacidadColaRecepcion / 2;
+                // duplicate(): FEC puede seguir usando la carga útil del segmento
+                while (!rcvQueue.empty()) datos.add(rcvQueue.get().data.duplicate());
+                actualizarVentana();
+            } finally {
+                rcvLock.unlock();
+            }
+        } finally {
+            if (anunciarVentana) network.send(crearAck());
+        }
+        return datos.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Cierra la conexión enviando un paquete FIN (activo desde ESTABLISHED, pasivo desde
+     * CLOSE_WAIT). Sin conexión, o con el cierre ya en curso, no hace nada.
+     */
     public void close() {
-        lock.lock();
+        TCPSegment_v5 fin = new TCPSegment_v5();
+        List<TCPSegment_v5> salida = new ArrayList<>(1);
+        sndLock.lock();
         try {
-            if (state == State.CLOSED) return;
+            // Cambio de estado a espera de fin. Si el FIN remoto se procesa a la vez, solo uno de
+            // los dos cambios gana; si gana este, ese FIN cierra la conexión del todo
+            if (!transicion(State.ESTABLISHED, State.FIN_WAIT) && !transicion(State.CLOSE_WAIT, State.FIN_WAIT)) return;
 
-            TCPSegment_v5 fin = new TCPSegment_v5();
             fin.fin = true;
             fin.ack = true;
             fin.ackNum = rcv_next;
+            fin.wnd = getRcvWindow(); // Como todo ACK: el otro extremo puede seguir enviando
             fin.seqNum = snd_next;
             fin.sourcePort = localPort;
             fin.destPort = remotePort;
@@ -300,47 +610,408 @@ public class TSocket {
             unackedSegments.put(snd_next, fin);
             retransmissionCount = 0;
 
-            state = State.FIN_WAIT; // Cambio de estado a espera de fin
-
-            network.send(fin);
+            despachar(fin, salida); // Con pacing, el FIN sale detrás de los datos pendientes
             startRTO();
 
             snd_next++;
         } finally {
-            lock.unlock();
+            sndLock.unlock();
         }
+        enviar(salida);
     }
 
     // =========================================================
     //                 MÉTODOS AUXILIARES
     // =========================================================
 
-    private void sendAck() {
+    /** ACK con el estado actual del receptor. Solo lee campos volatile: no requiere lock. */
+    private TCPSegment_v5 crearAck() {
         TCPSegment_v5 ack = new TCPSegment_v5();
         ack.ack = true;
         ack.ackNum = rcv_next;
         ack.wnd = getRcvWindow(); // Anunciar espacio libre
         ack.sourcePort = localPort;
         ack.destPort = remotePort;
-        network.send(ack);
+        return ack;
+    }
+
+    /** Envía a la red los segmentos preparados. Nunca se llama con un lock tomado. */
+    private void enviar(List<TCPSegment_v5> salida) {
+        for (TCPSegment_v5 seg : salida) network.send(seg);
+        salida.clear();
+    }
+
+    /**
+     * (Con sndLock) Envía un segmento nuevo: a la lista de salida o, con pacing,
+     * programado en el Pacer para que la ventana se reparta a lo largo de un RTT.
+     * Si no hay ningún segmento cronometrado, este pasa a serlo.
+     */
+    private void despachar(TCPSegment_v5 seg, List<TCPSegment_v5> salida) {
+        long instante;
+        if (pacer == null) {
+            instante = timerService.nanoTime();
+            salida.add(seg);
+        } else {
+            instante = Math.max(pacer.nanoTime(), proximaSalida);
+            pacer.programar(seg, instante);
+            proximaSalida = instante;
+            if (srtt > 0 && snd_wnd > 0) {
+                // Ritmo = GANANCIA * ventana / RTT (segmentos por ns)
+                proximaSalida += (long) (srtt / (GANANCIA_PACING * snd_wnd));
+            }
+        }
+        if (rttSeq < 0 && !seg.fec) {
+            rttSeq = seg.seqNum;
+            rttInicio = instante;
+        }
+    }
+
+    /** (Con sndLock) Toma una muestra de RTT si el ACK cubre el segmento cronometrado (SRTT con alfa = 1/8). */
+    private void medirRtt(int ackNum) {
+        if (rttSeq < 0 || ackNum <= rttSeq) return;
+        long muestra = timerService.nanoTime() - rttInicio;
+        srtt = srtt == 0 ? muestra : srtt + (muestra - srtt) / 8;
+        rttSeq = -1;
+    }
+
+    /** Cambia el estado y despierta a quien espera el handshake. Admite sndLock o rcvLock tomado. */
+    private void setState(State nuevo) {
+        lock.lock();
+        try {
+            if (PacketTrace.isActivo()) {
+                PacketTrace.registrarEstado(localPort, remotePort, state, nuevo, timerService.nanoTime());
+            }
+            state = nuevo;
+            esperoConexion.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cambia el estado solo si sigue siendo el esperado: la comprobación y el cambio son
+     * atómicos bajo lock, así que dos transiciones concurrentes no se pisan.
+     * Admite sndLock o rcvLock tomado.
+     *
+     * @return false si el estado ya era otro (no se cambia)
+     */
+    private boolean transicion(State esperado, State nuevo) {
+        lock.lock();
+        try {
+            if (state != esperado) return false;
+            setState(nuevo);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * FIN remoto estando en FIN_WAIT: ambos extremos han cerrado, cierre completo.
+     * Sin rcvLock (sndLock y rcvLock no se anidan).
+     */
+    private void cerrarDelTodo() {
+        boolean cerrada;
+        sndLock.lock();
+        try {
+            cerrada = transicion(State.FIN_WAIT, State.CLOSED);
+            if (cerrada) {
+                stopRTO();
+                esperoAck.signalAll();
+            }
+        } finally {
+            sndLock.unlock();
+        }
+        if (cerrada) despertarLectores();
+    }
+
+    private void esperarConexion() {
+        lock.lock();
+        try {
+            comprobarBloqueo();
+            while (state != State.ESTABLISHED) {
+                esperoConexion.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // =========================================================
+    //            CORRECCIÓN DE ERRORES (FEC por XOR)
+    // =========================================================
+
+    /** Tamaño de grupo vigente: fijo, o derivado de la pérdida estimada. */
+    private int grupoFec() {
+        if (!fecAdaptativo) return fecGrupo;
+        int k = (int) (0.5 / Math.max(perdidaEstimada, 0.001)); // ~1 pérdida cada 2 grupos
+        return Math.max(2, Math.min(MAX_GRUPO_FEC, k));
+    }
+
+    /** (Emisor, con sndLock) Añade un segmento recién enviado a la paridad del grupo en curso. */
+    private void acumularParidad(TCPSegment_v5 seg, List<TCPSegment_v5> salida) {
+        perdidaEstimada -= perdidaEstimada / 16;
+        if (fecN == 0) {
+            fecBase = seg.seqNum;
+            Arrays.fill(fecParidad, (byte) 0);
+        }
+        ByteBuffer d = seg.data;
+        for (int i = 0; i < d.remaining(); i++) {
+            fecParidad[i] ^= d.get(d.position() + i);
+        }
+        fecLongitudes[fecN++] = seg.length();
+        if (fecN >= grupoFec()) despachar(emitirParidad(), salida);
+    }
+
+    /** (Emisor, con sndLock) Cierra el grupo en curso. La paridad no se guarda para retransmitir. */
+    private TCPSegment_v5 emitirParidad() {
+        int max = 0;
+        for (int i = 0; i < fecN; i++) max = Math.max(max, fecLongitudes[i]);
+
+        TCPSegment_v5 par = new TCPSegment_v5();
+        par.fec = true;
+        par.sourcePort = localPort;
+        par.destPort = remotePort;
+        par.seqNum = fecBase;
+        par.fecLongitudes = Arrays.copyOf(fecLongitudes, fecN);
+        par.data = ByteBuffer.wrap(Arrays.copyOf(fecParidad, max)).asReadOnlyBuffer();
+        fecN = 0;
+
+        log("[FEC]: Paridad seq=" + par.seqNum + " (" + par.fecLongitudes.length + " segmentos).");
+        return par;
+    }
+
+    /** (Receptor, con rcvLock) Guarda la carga útil de un segmento de datos por si hace falta para reconstruir. */
+    private void registrarParaFec(TCPSegment_v5 s, List<TCPSegment_v5> salida) {
+        if (s.length() > 0 && s.seqNum >= rcv_next) fecRecibidos.put(s.seqNum, s.data);
+
+        // Olvidar lo que ya queda muy por detrás de rcv_next
+        int limite = rcv_next - 2 * capacidadColaRecepcion * MSS;
+        fecRecibidos.headMap(limite).clear();
+        fecParidades.headMap(limite).clear();
+
+        // Puede completar un grupo al que solo le faltaba este segmento
+        Map.Entry<Integer, TCPSegment_v5> e = fecParidades.floorEntry(s.seqNum);
+        if (e != null && intentarRecuperar(e.getValue(), salida)) fecParidades.remove(e.getKey());
+    }
+
+    /** (Receptor, con rcvLock) Llega una paridad: reconstruir ya si es posible, si no guardarla. */
+    private void recibirParidad(TCPSegment_v5 par, List<TCPSegment_v5> salida) {
+        if (!intentarRecuperar(par, salida)) fecParidades.put(par.seqNum, par);
+    }
+
+    /**
+     * Reconstruye el único segmento que falta de un grupo (XOR de la paridad con el resto)
+     * y lo procesa como si hubiera llegado por la red.
+     *
+     * @return true si la paridad ya no es útil (grupo completo o reconstruido)
+     */
+    private boolean intentarRecuperar(TCPSegment_v5 par, List<TCPSegment_v5> salida) {
+        int[] lens = par.fecLongitudes;
+        int seq = par.seqNum;
+        int faltaIdx = -1, faltaSeq = -1, faltan = 0;
+        for (int i = 0; i < lens.length; i++) {
+            if (seq >= rcv_next && !fecRecibidos.containsKey(seq)) {
+                faltan++;
+                faltaIdx = i;
+                faltaSeq = seq;
+            }
+            seq += lens[i];
+        }
+        if (faltan == 0) return true;  // Nada que recuperar
+        if (faltan > 1) return false;  // Esperar a que llegue (o se retransmita) otro
+
+        // XOR de la paridad con el resto de segmentos del grupo
+        byte[] rec = new byte[lens[faltaIdx]];
+        par.data.duplicate().get(rec, 0, Math.min(rec.length, par.length()));
+        seq = par.seqNum;
+        for (int i = 0; i < lens.length; i++) {
+            if (i != faltaIdx) {
+                ByteBuffer d = fecRecibidos.get(seq);
+                if (d == null) return true; // Ya descartado: no se puede reconstruir
+                for (int j = 0; j < rec.length && j < d.remaining(); j++) {
+                    rec[j] ^= d.get(d.position() + j);
+                }
+            }
+            seq += lens[i];
+        }
+
+        TCPSegment_v5 seg = new TCPSegment_v5();
+        seg.sourcePort = par.sourcePort;
+        seg.destPort = par.destPort;
+        seg.seqNum = faltaSeq;
+        seg.psh = true;
+        seg.data = ByteBuffer.wrap(rec).asReadOnlyBuffer();
+        fecRecuperados++;
+        log("[FEC]: Reconstruido seq=" + faltaSeq + " a partir de paridad");
+        recibirDatos(seg, salida);
+        return true;
+    }
+
+    /**
+     * Indica si el segmento consume números de secuencia (datos, SYN o FIN) y por tanto requiere ACK.
+     * Las paridades FEC llevan carga útil pero reutilizan la secuencia de su grupo: no ocupan.
+     */
+    private static boolean ocupaSecuencia(TCPSegment_v5 s) {
+        return !s.fec && (s.length() > 0 || s.syn || s.fin);
     }
 
     private int getRcvWindow() {
-        return Math.max(0, (capacidadColaRecepcion - rcvQueue.size()) * MSS);
+        return rcv_wnd;
+    }
+
+    /** Recalcula la ventana anunciada tras cambiar la ocupación de rcvQueue. Requiere rcvLock. */
+    private void actualizarVentana() {
+        rcv_wnd = Math.max(0, capacidadColaRecepcion - rcvQueue.size());
     }
 
     public boolean areAllSegmentsConfirmed() {
-        lock.lock();
+        sndLock.lock();
         try {
             return snd_unack == snd_next;
         } finally {
-            lock.unlock();
+            sndLock.unlock();
         }
     }
 
+    /**
+     * Bloquea hasta que el remoto confirme todo lo enviado hasta este momento
+     * (o hasta que la conexión se cierre). A partir de ahí los buffers pasados
+     * a {@link #write(ByteBuffer...)} pueden reutilizarse.
+     */
+    public void awaitAllSegmentsConfirmed() {
+        sndLock.lock();
+        try {
+            int objetivo = snd_next;
+            if (snd_unack < objetivo) comprobarBloqueo();
+            while (snd_unack < objetivo && state != State.CLOSED) {
+                esperoAck.awaitUninterruptibly();
+            }
+        } finally {
+            sndLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public State getState() {
+        return state;
+    }
+
     public int getLocalPort() { return localPort; }
     public int getRemotePort() { return remotePort; }
 
+    /**
+     * Registra el receptor de avisos (conexión establecida, ACKs, datos, cierre).
+     * Los avisos se ejecutan fuera del lock, como tarea del Scheduler del socket.
+     */
+    public void setListener(TSocketListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Activa la corrección de errores: tras cada grupo de segmentos de datos se envía
+     * un segmento de paridad XOR con el que el receptor reconstruye una pérdida por
+     * grupo sin esperar al RTO. La redundancia es 1/grupo. En modo adaptativo el
+     * tamaño de grupo se ajusta a la tasa de retransmisiones observada (2..16).
+     *
+     * @param grupo segmentos por paridad (0 desactiva, máximo 16)
+     */
+    public void setFec(int grupo, boolean adaptativo) {
+        if (grupo < 0 || grupo > MAX_GRUPO_FEC) {
+            throw new IllegalArgumentException("Tamaño de grupo FEC fuera de rango (0.." + MAX_GRUPO_FEC + "): " + grupo);
+        }
+        TCPSegment_v5 par = null;
+        sndLock.lock();
+        try {
+            if (fecN > 0) par = emitirParidad();
+            this.fecGrupo = grupo;
+            this.fecAdaptativo = adaptativo;
+        } finally {
+            sndLock.unlock();
+        }
+        if (par != null) network.send(par);
+    }
+
+    /** Número de segmentos reconstruidos a partir de paridad en este extremo. */
+    public int getFecRecuperados() {
+        rcvLock.lock();
+        try {
+            return fecRecuperados;
+        } finally {
+            rcvLock.unlock();
+        }
+    }
+
+    /**
+     * Activa el pacing: en vez de enviar la ventana entera de golpe, los segmentos
+     * nuevos salen espaciados a un ritmo de ventana/RTT medido, liberados por el
+     * Pacer (que puede compartirse entre conexiones). Las retransmisiones y los ACKs
+     * no se espacian. Con null se vuelve al envío inmediato.
+     */
+    public void setPacer(Pacer pacer) {
+        sndLock.lock();
+        try {
+            this.pacer = pacer;
+            this.proximaSalida = 0;
+        } finally {
+            sndLock.unlock();
+        }
+    }
+
+    /** RTT suavizado medido en esta conexión (ns), o 0 si aún no hay muestras. */
+    public long getRttSuavizado() {
+        sndLock.lock();
+        try {
+            return srtt;
+        } finally {
+            sndLock.unlock();
+        }
+    }
+
+    /** Activa o desactiva las trazas por consola de todos los sockets. */
+    public static void setVerbose(boolean activo) {
+        verbose = activo;
+    }
+
+    private void avisarListener() {
+        final TSocketListener l = listener;
+        if (l == null || avisoPendiente) return;
+        avisoPendiente = true;
+        timerService.schedule(() -> {
+            avisoPendiente = false;
+            l.onEvent(this);
+        }, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /** Tras pasar a CLOSED: los lectores bloqueados deben ver el fin de flujo. Sin sndLock (no se anidan). */
+    private void despertarLectores() {
+        rcvLock.lock();
+        try {
+            dataDisponible.signalAll();
+        } finally {
+            rcvLock.unlock();
+        }
+    }
+
+    /** En simulación no hay otro hilo que pueda despertarnos: bloquear sería un interbloqueo. */
+    private void comprobarBloqueo() {
+        if (simulado) {
+            throw new IllegalStateException("Operación bloqueante en modo simulado: usar la API no bloqueante");
+        }
+    }
+
+    /** Registra el evento en la traza binaria, si está activa. */
+    private void trazar(byte tipo, TCPSegment_v5 seg) {
+        if (PacketTrace.isActivo()) PacketTrace.registrar(tipo, seg, timerService.nanoTime());
+    }
+
+    private static void log(String mensaje) {
+        if (verbose) System.out.println(mensaje);
+    }
+
     // =========================================================
     //          MÁQUINA DE ESTADOS (Procesamiento de Paquetes)
     // =========================================================
@@ -348,48 +1019,62 @@ public class TSocket {
     /**
      * Método principal que procesa cada paquete recibido según el estado actual.
      * Implementa la lógica de la máquina de estados TCP.
+     * Las respuestas se envían al final, ya sin locks, con SimNet.sendSinEspera: este
+     * hilo es el que vacía la red y no puede bloquearse en ella. Si la red está
+     * saturada, el envío bloqueante lo hace el hilo de envíos de SimNet.
      */
     public void processReceivedSegment(TCPSegment_v5 s) {
-        lock.lock();
+        trazar(PacketTrace.RECEPCION, s);
+        List<TCPSegment_v5> salida = new ArrayList<>(2);
         try {
-            // Caso Especial: Si el socket está cerrado pero recibe un FIN retransmitido,
-            // responde con ACK para permitir que el otro extremo cierre limpiamente.
-            if (state == State.CLOSED) {
-                if (s.fin) {
-                    TCPSegment_v5 ack = new TCPSegment_v5();
-                    ack.ack = true;
-                    ack.ackNum = s.seqNum + 1;
-                    ack.seqNum = snd_next;
-                    ack.sourcePort = localPort;
-                    ack.destPort = remotePort;
-                    network.send(ack);
-                }
-                return;
-            }
-
             switch (state) {
+                // Caso Especial: Si el socket está cerrado pero recibe un FIN retransmitido,
+                // responde con ACK para permitir que el otro extremo cierre limpiamente.
+                case CLOSED:
+                    if (s.fin) {
+                        TCPSegment_v5 ack = new TCPSegment_v5();
+                        ack.ack = true;
+                        ack.ackNum = s.seqNum + 1;
+                        ack.sourcePort = localPort;
+                        ack.destPort = remotePort;
+                        sndLock.lock();
+                        try {
+                            ack.seqNum = snd_next;
+                        } finally {
+                            sndLock.unlock();
+                        }
+                        salida.add(ack);
+                    }
+                    break;
+
                 // --- FASE DE CONEXIÓN ---
                 case LISTEN:
                     if (s.syn) {
                         remotePort = s.sourcePort;
+                        rcv_next = s.seqNum + 1;
+
                         // Responder con SYN+ACK
                         TCPSegment_v5 resp = new TCPSegment_v5();
                         resp.syn = true;
                         resp.ack = true;
                         resp.sourcePort = localPort;
                         resp.destPort = remotePort;
-                        resp.seqNum = snd_next;
-                        resp.ackNum = s.seqNum + 1;
+                        resp.ackNum = rcv_next;
                         resp.wnd = getRcvWindow();
-                        
-                        unackedSegments.put(snd_next, resp);
-                        rcv_next = resp.ackNum;
-                        snd_next++;
-                        
-                        network.send(resp);
-                        startRTO();
-                        state = State.ESTABLISHED;
-                        esperoConexion.signalAll();
+
+                        sndLock.lock();
+                        try {
+                            resp.seqNum = snd_next;
+                            unackedSegments.put(snd_next, resp);
+                            rttSeq = snd_next;
+                            rttInicio = timerService.nanoTime();
+                            snd_next++;
+                            startRTO();
+                            setState(State.ESTABLISHED);
+                        } finally {
+                            sndLock.unlock();
+                        }
+                        salida.add(resp);
                     }
                     break;
 
@@ -397,120 +1082,168 @@ public class TSocket {
                     if (s.syn && s.ack) {
                         // Handshake completado: Enviar ACK final
                         rcv_next = s.seqNum + 1;
-                        snd_unack = s.ackNum;
-                        snd_wnd = s.wnd;
-                        stopRTO();
-                        unackedSegments.clear();
-                        
+
                         TCPSegment_v5 ack = new TCPSegment_v5();
                         ack.ack = true;
-                        ack.seqNum = snd_next;
                         ack.ackNum = rcv_next;
+                        ack.wnd = getRcvWindow(); // Primera ventana que ve el servidor: sin ella empieza en 0
                         ack.sourcePort = localPort;
                         ack.destPort = remotePort;
-                        network.send(ack);
-                        
-                        state = State.ESTABLISHED;
-                        esperoConexion.signalAll();
-                    }
-                    break;
 
-                // --- FASE DE TRANSFERENCIA DE DATOS ---
-                case ESTABLISHED:
-                    // 1. Procesar ACKs (Liberar ventana y buffer de retransmisión)
-                    if (s.ack) {
-                        snd_wnd = s.wnd;
-                        if (s.ackNum > snd_unack) {
-                            for (int i = snd_unack; i < s.ackNum; i++) unackedSegments.remove(i);
+                        sndLock.lock();
+                        try {
+                            medirRtt(s.ackNum);
                             snd_unack = s.ackNum;
-                            retransmissionCount = 0;
+                            snd_wnd = s.wnd;
                             stopRTO();
-                            if (snd_unack < snd_next) startRTO(); // Reiniciar si quedan datos
-                            esperoAck.signalAll(); // Desbloquear emisor
+                            unackedSegments.clear();
+                            ack.seqNum = snd_next;
+                            setState(State.ESTABLISHED);
+                        } finally {
+                            sndLock.unlock();
                         }
+                        salida.add(ack);
                     }
+                    break;
 
-                    // 2. Procesar Datos entrantes
-                    boolean processed = false;
-                    if (s.seqNum == rcv_next) {
-                        // A. Paquete en orden
-                        if (!rcvQueue.full()) {
-                            if (s.psh || s.data.length > 0) {
-                                rcvQueue.put(s);
-                                rcv_next += s.data.length;
-                                dataDisponible.signal();
-                            }
-                            if (s.fin) {
-                                rcv_next++;
-                                state = State.CLOSE_WAIT; // Inicio de cierre pasivo
-                                dataDisponible.signalAll();
-                            }
-                            processed = true;
+                // --- FASE DE TRANSFERENCIA DE DATOS ---
+                case ESTABLISHED:
+                    if (s.fec) {
+                        rcvLock.lock();
+                        try {
+                            recibirParidad(s, salida);
+                        } finally {
+                            rcvLock.unlock();
                         }
-                    } else if (s.seqNum > rcv_next) {
-                        // B. Paquete fuera de orden (Hueco detectado) -> Guardar en buffer
-                        System.out.println("[RCV]: Desorden (Llegó " + s.seqNum + ", esperaba " + rcv_next + "). Guardando...");
-                        out_of_order_segs.put(s.seqNum, s);
-                        sendAck(); // ACK duplicado para solicitar retransmisión rápida
-                        return;
+                        break;
                     }
 
-                    // 3. Revisar buffer de desordenados (Rellenar huecos)
-                    if (processed) {
-                        while (out_of_order_segs.containsKey(rcv_next)) {
-                            TCPSegment_v5 sig = out_of_order_segs.get(rcv_next);
-                            if (!rcvQueue.full()) {
-                                out_of_order_segs.remove(rcv_next);
-                                System.out.println("[RCV]: Recuperando seq=" + sig.seqNum + " del buffer");
-                                if (sig.psh || sig.data.length > 0) {
-                                    rcvQueue.put(sig);
-                                    rcv_next += sig.data.length;
-                                    dataDisponible.signal();
-                                }
-                                if (sig.fin) {
-                                    rcv_next++;
-                                    state = State.CLOSE_WAIT;
-                                    dataDisponible.signalAll();
-                                }
-                            } else break;
-                        }
-                        sendAck(); // Confirmar todo lo procesado
-                    } else {
-                        sendAck(); // Confirmar recepción (incluso si es duplicado)
+                    // 1. Procesar ACKs (Liberar ventana y buffer de retransmisión)
+                    if (s.ack) procesarAck(s, true);
+
+                    // Un ACK puro no ocupa secuencia: no se confirma (evita el ping-pong de ACKs)
+                    if (!ocupaSecuencia(s)) break;
+
+                    // 2. Procesar Datos entrantes
+                    rcvLock.lock();
+                    try {
+                        recibirDatos(s, salida);
+                    } finally {
+                        rcvLock.unlock();
                     }
                     break;
 
                 // --- FASE DE CIERRE ---
                 case FIN_WAIT:
                     // Procesar ACKs pendientes para asegurar entrega fiable antes de cerrar
-                    if (s.ack) {
-                        if (s.ackNum > snd_unack) {
-                            for (int i = snd_unack; i < s.ackNum; i++) unackedSegments.remove(i);
-                            snd_unack = s.ackNum;
-                            retransmissionCount = 0;
-                            stopRTO();
-                            if (snd_unack < snd_next) startRTO();
-                        }
-                    }
+                    if (s.ack) procesarAck(s, false);
 
                     // Si recibimos el FIN del otro lado, cerramos completamente
                     if (s.fin) {
                         rcv_next++;
-                        state = State.CLOSED;
-                        stopRTO();
+                        cerrarDelTodo();
                     }
-                    sendAck(); // Siempre responder en estados de cierre
+                    if (ocupaSecuencia(s)) salida.add(crearAck()); // Responder en estados de cierre (salvo a ACKs puros)
                     break;
 
                 case CLOSE_WAIT:
-                    sendAck();
+                    if (ocupaSecuencia(s)) salida.add(crearAck());
                     break;
+            }
+            // El FIN se procesó como ESTABLISHED mientras close() pasaba a FIN_WAIT (ya confirmado en salida)
+            if (finEnFinWait) cerrarDelTodo();
+        } finally {
+            avisarListener();
+        }
+        for (TCPSegment_v5 seg : salida) network.sendSinEspera(seg);
+    }
 
-                case CLOSED:
-                    break;
+    /**
+     * (Lado emisor) Avanza snd_unack con un ACK y, si procede, actualiza la ventana remota.
+     * Los envíos salen fuera de los locks, desde el hilo de envíos de SimNet o desde el
+     * Pacer, así que un segmento viejo puede llegar después de uno nuevo. Como en la regla
+     * SND.WL1/WL2 de RFC 793, la ventana solo se toma de un segmento más reciente que el
+     * que fijó la vigente: uno que confirma más, o uno con el mismo ackNum y más ventana.
+     * Mientras el ackNum no avanza, en la cola del receptor no entra nada y su ventana solo
+     * puede crecer, así que de dos segmentos con el mismo ackNum el de más ventana es el nuevo.
+     */
+    private void procesarAck(TCPSegment_v5 s, boolean actualizarVentana) {
+        sndLock.lock();
+        try {
+            boolean reciente = s.ackNum > snd_unack || (s.ackNum == snd_unack && s.wnd > snd_wnd);
+            if (actualizarVentana && reciente && s.wnd != snd_wnd) {
+                snd_wnd = s.wnd;
+                esperoAck.signalAll(); // Una ventana que se reabre también desbloquea al emisor
+            }
+            if (s.ackNum > snd_unack) {
+                medirRtt(s.ackNum);
+                for (int i = snd_unack; i < s.ackNum; i++) unackedSegments.remove(i);
+                snd_unack = s.ackNum;
+                retransmissionCount = 0;
+                stopRTO();
+                if (snd_unack < snd_next) startRTO(); // Reiniciar si quedan datos
+                esperoAck.signalAll(); // Desbloquear emisor
             }
         } finally {
-            lock.unlock();
+            sndLock.unlock();
+        }
+    }
+
+    /** (Lado receptor, con rcvLock) Entrega en orden, reordenación y ACK de un segmento que ocupa secuencia. */
+    private void recibirDatos(TCPSegment_v5 s, List<TCPSegment_v5> salida) {
+        registrarParaFec(s, salida);
+
+        boolean processed = false;
+        if (s.seqNum == rcv_next) {
+            // A. Paquete en orden
+            if (!rcvQueue.full()) {
+                if (s.psh || s.length() > 0) {
+                    out_of_order_segs.remove(s.seqNum); // Pudo guardarse antes como desordenado
+                    rcvQueue.put(s);
+                    actualizarVentana();
+                    rcv_next += s.length();
+                    dataDisponible.signal();
+                }
+                if (s.fin) recibirFin();
+                processed = true;
+            }
+        } else if (s.seqNum > rcv_next) {
+            // B. Paquete fuera de orden (Hueco detectado) -> Guardar en buffer
+            log("[RCV]: Desorden (Llegó " + s.seqNum + ", esperaba " + rcv_next + "). Guardando...");
+            out_of_order_segs.put(s.seqNum, s);
+            salida.add(crearAck()); // ACK duplicado para solicitar retransmisión rápida
+            return;
+        }
+
+        // 3. Revisar buffer de desordenados (Rellenar huecos)
+        if (processed) {
+            while (out_of_order_segs.containsKey(rcv_next)) {
+                TCPSegment_v5 sig = out_of_order_segs.get(rcv_next);
+                if (!rcvQueue.full()) {
+                    out_of_order_segs.remove(rcv_next);
+                    log("[RCV]: Recuperando seq=" + sig.seqNum + " del buffer");
+                    if (sig.psh || sig.length() > 0) {
+                        rcvQueue.put(sig);
+                        actualizarVentana();
+                        rcv_next += sig.length();
+                        dataDisponible.signal();
+                    }
+                    if (sig.fin) recibirFin();
+                } else break;
+            }
+            salida.add(crearAck()); // Confirmar todo lo procesado
+        } else {
+            salida.add(crearAck()); // Confirmar recepción (incluso si es duplicado)
         }
     }
+
+    /**
+     * (Con rcvLock) FIN en orden: inicio del cierre pasivo. Si close() ya pasó a FIN_WAIT,
+     * la transición falla y processReceivedSegment cierra del todo al soltar el lock.
+     */
+    private void recibirFin() {
+        rcv_next++;
+        if (!transicion(State.ESTABLISHED, State.CLOSE_WAIT)) finEnFinWait = true;
+        dataDisponible.signalAll();
+    }
 }
\ No newline at end of file
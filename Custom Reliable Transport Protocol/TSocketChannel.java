@@ -0,0 +1,83 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Adaptador NIO sobre un TSocket.
+ * Permite usar el transporte desde código que trabaja con canales
+ * (Channels.newInputStream, FileChannel.transferFrom, etc.) sin copias extra.
+ *
+ * Las escrituras referencian los buffers del llamante sin copiarlos, y las
+ * retransmisiones salen de ellos, así que cada write() espera a que sus datos
+ * estén confirmados antes de devolver: el contrato de WritableByteChannel permite
+ * reutilizar el buffer al volver. Una vez confirmados, el receptor tiene su propia
+ * copia (SimNet copia cada segmento al aceptarlo).
+ */
+public class TSocketChannel implements ByteChannel, ScatteringByteChannel, GatheringByteChannel {
+
+    private final TSocket socket;
+    private volatile boolean open = true;
+
+    TSocketChannel(TSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return (int) read(new ByteBuffer[] { dst }, 0, 1);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        return socket.read(subArray(dsts, offset, length));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        long enviados = socket.write(subArray(srcs, offset, length));
+        socket.awaitAllSegmentsConfirmed(); // Tras esto el llamante puede reutilizar sus buffers
+        if (socket.isClosed() && enviados == 0) throw new ClosedChannelException();
+        return enviados;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        if (!open) return;
+        open = false;
+        socket.close();
+    }
+
+    private static ByteBuffer[] subArray(ByteBuffer[] bufs, int offset, int length) {
+        if (offset == 0 && length == bufs.length) return bufs;
+        ByteBuffer[] sub = new ByteBuffer[length];
+        System.arraycopy(bufs, offset, sub, 0, length);
+        return sub;
+    }
+}
@@ -0,0 +1,10 @@
+package tcppruebas.uni.TCP_v5;
+
+/**
+ * Aviso de que algo ha cambiado en un TSocket (conexión establecida, ACK recibido,
+ * datos disponibles, cierre). Varios cambios seguidos pueden llegar como un único
+ * aviso: el receptor debe consultar el estado y usar offer/poll para avanzar.
+ */
+public interface TSocketListener {
+    void onEvent(TSocket socket);
+}
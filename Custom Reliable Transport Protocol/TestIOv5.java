@@ -0,0 +1,173 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Prueba de extremo a extremo de la E/S sin copias de TSocket:
+ * write/read con scatter/gather, TSocketChannel y los adaptadores
+ * getInputStream/getOutputStream, sendData reutilizando el array y la
+ * transferencia de ficheros mapeados (sendFile/receiveToFile).
+ * El servidor lee con retraso, así que los datos esperan en su rcvQueue
+ * mientras el cliente ya ha reutilizado sus buffers.
+ *
+ * Uso: TestIOv5 [lossRate]
+ */
+public class TestIOv5 {
+
+    private static final int ENTEROS = 200;
+    private static final int BYTES_FICHERO = 100_003; // No múltiplo del MSS ni de la ventana
+    private static volatile boolean correcto = true;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        double lossRate = args.length > 0 ? Double.parseDouble(args[0]) : 0.0;
+        TSocket.setVerbose(false);
+
+        SimNet network = new SimNet(lossRate);
+        Protocol protocol = new Protocol(network);
+
+        TSocket client = new TSocket(network, 10);
+        TSocket server = new TSocket(network, 20);
+
+        protocol.addActiveTSocket(client);
+        protocol.addActiveTSocket(server);
+
+        byte[] cuerpo = new byte[100];
+        for (int i = 0; i < cuerpo.length; i++) cuerpo[i] = (byte) i;
+
+        byte[] contenido = new byte[BYTES_FICHERO];
+        new Random(5).nextBytes(contenido);
+        Path origen = Files.createTempFile("tsocket-origen", ".bin");
+        Path destino = Files.createTempFile("tsocket-destino", ".bin");
+        origen.toFile().deleteOnExit();
+        destino.toFile().deleteOnExit();
+        Files.write(origen, contenido);
+
+        System.out.println("=== INICIO DEL TEST DE E/S (loss=" + lossRate + ") ===");
+
+        // --- HILO SERVIDOR (lector lento) ---
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.listen();
+
+                // 1. Scatter: cabecera y cuerpo en dos buffers (el segundo directo)
+                pausa();
+                ByteBuffer cabecera = ByteBuffer.allocate(9);
+                ByteBuffer datos = ByteBuffer.allocateDirect(cuerpo.length);
+                while (cabecera.hasRemaining() || datos.hasRemaining()) {
+                    if (server.read(cabecera, datos) < 0) break;
+                }
+                byte[] leido = new byte[cuerpo.length];
+                datos.flip();
+                datos.get(leido);
+                comprobar("write/read scatter-gather",
+                        new String(cabecera.array()).equals("cabecera:") && Arrays.equals(leido, cuerpo));
+
+                // 2. TSocketChannel: el cliente reutiliza el mismo buffer en dos write()
+                pausa();
+                ReadableByteChannel canal = server.getChannel();
+                ByteBuffer recibido = ByteBuffer.allocate(120);
+                while (recibido.hasRemaining()) {
+                    if (canal.read(recibido) < 0) break;
+                }
+                comprobar("TSocketChannel con buffer reutilizado", Arrays.equals(recibido.array(), relleno(60, 'A', 60, 'B')));
+
+                // 3. Streams: DataOutputStream sobre BufferedOutputStream
+                pausa();
+                DataInputStream in = new DataInputStream(server.getInputStream());
+                boolean enteros = true;
+                for (int i = 0; i < ENTEROS; i++) enteros &= in.readInt() == i * 7919;
+                comprobar("getInputStream/getOutputStream", enteros);
+
+                // 4. sendData: el array se reutiliza en cuanto vuelve
+                pausa();
+                byte[] bufferRecep = new byte[90];
+                server.receiveData(bufferRecep);
+                comprobar("sendData con array reutilizado", Arrays.equals(bufferRecep, relleno(45, 'C', 45, 'D')));
+
+                // 5. Fichero: receiveToFile termina con el FIN del cliente
+                long recibidos = server.receiveToFile(destino);
+                comprobar("sendFile/receiveToFile (" + recibidos + " bytes)",
+                        recibidos == BYTES_FICHERO && Arrays.equals(Files.readAllBytes(destino), contenido));
+
+                // 6. Cierre: fin de flujo también en el stream
+                comprobar("fin de flujo tras el cierre del cliente", in.read() == -1);
+                server.close();
+            } catch (IOException e) {
+                comprobar("servidor sin excepciones (" + e + ")", false);
+            }
+        });
+        serverThread.start();
+
+        Thread.sleep(200);
+
+        // --- HILO CLIENTE ---
+        Thread clientThread = new Thread(() -> {
+            try {
+                client.connect(20);
+
+                ByteBuffer directo = ByteBuffer.allocateDirect(cuerpo.length);
+                directo.put(cuerpo).flip();
+                client.write(ByteBuffer.wrap("cabecera:".getBytes()), directo);
+
+                WritableByteChannel canal = client.getChannel();
+                byte[] buffer = new byte[60];
+                Arrays.fill(buffer, (byte) 'A');
+                canal.write(ByteBuffer.wrap(buffer));
+                Arrays.fill(buffer, (byte) 'B');
+                canal.write(ByteBuffer.wrap(buffer));
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), 64));
+                for (int i = 0; i < ENTEROS; i++) out.writeInt(i * 7919);
+                out.flush();
+
+                byte[] datos = new byte[45];
+                Arrays.fill(datos, (byte) 'C');
+                client.sendData(datos);
+                Arrays.fill(datos, (byte) 'D');
+                client.sendData(datos);
+
+                client.sendFile(origen); // Retorna con todo confirmado
+                client.close();
+
+                // El FIN del servidor lleva al cliente de FIN_WAIT a CLOSED: la lectura bloqueada debe terminar
+                comprobar("fin de flujo en el cliente tras su cierre", client.getInputStream().read() == -1);
+            } catch (IOException e) {
+                comprobar("cliente sin excepciones (" + e + ")", false);
+            }
+        });
+        clientThread.start();
+
+        serverThread.join();
+        clientThread.join();
+
+        System.out.println(correcto ? "=== TODAS LAS PRUEBAS CORRECTAS ===" : "=== HAY PRUEBAS FALLIDAS ===");
+        System.exit(correcto ? 0 : 1);
+    }
+
+    private static void comprobar(String prueba, boolean ok) {
+        System.out.println((ok ? "[OK]    " : "[FALLO] ") + prueba);
+        correcto &= ok;
+    }
+
+    /** Deja que los datos se acumulen en la cola de recepción antes de leerlos. */
+    private static void pausa() {
+        try { Thread.sleep(300); } catch (InterruptedException e) {}
+    }
+
+    private static byte[] relleno(int n1, char c1, int n2, char c2) {
+        byte[] b = new byte[n1 + n2];
+        Arrays.fill(b, 0, n1, (byte) c1);
+        Arrays.fill(b, n1, b.length, (byte) c2);
+        return b;
+    }
+}
\ No newline at end of file
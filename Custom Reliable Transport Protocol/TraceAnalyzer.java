@@ -0,0 +1,262 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Herramienta offline para los ficheros de PacketTrace.
+ * Agrupa los eventos por conexión (par de puertos) y reconstruye, para cada una,
+ * los cambios de estado de ambos extremos, las muestras de RTT de cada sentido
+ * (algoritmo de Karn: no se mide ningún ACK que confirme un retransmitido) y la evolución de
+ * la ventana anunciada y de los bytes en vuelo.
+ *
+ * Uso: TraceAnalyzer fichero [-v]   (-v imprime además la línea de tiempo completa)
+ */
+public class TraceAnalyzer {
+
+    private static final String[] TIPOS = {"?", "ENVIO", "RECEPCION", "DESCARTE", "RETRANSMISION", "ESTADO", "SATURACION"};
+    private static final int MAX_CAMBIOS_RESUMEN = 12; // Cambios de ventana listados sin -v
+
+    /** Evento leído del fichero, tal y como se grabó. */
+    static final class Evento {
+        long tiempo;
+        byte tipo;
+        int flags;
+        int hilo;
+        int origen;
+        int destino;
+        int seq;
+        int ack;
+        int wnd;
+        int longitud;
+
+        boolean tiene(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        /** Consume números de secuencia (datos, SYN o FIN) y no es paridad. */
+        boolean ocupaSecuencia() {
+            return !tiene(PacketTrace.F_FEC) && (longitud > 0 || tiene(PacketTrace.F_SYN) || tiene(PacketTrace.F_FIN));
+        }
+
+        int finSecuencia() {
+            return seq + longitud + (tiene(PacketTrace.F_SYN) || tiene(PacketTrace.F_FIN) ? 1 : 0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: TraceAnalyzer fichero [-v]");
+            return;
+        }
+        boolean detalle = args.length > 1 && args[1].equals("-v");
+        List<Evento> eventos = leer(Paths.get(args[0]));
+        if (eventos.isEmpty()) {
+            System.out.println("Traza vacía.");
+            return;
+        }
+        long t0 = eventos.get(0).tiempo;
+
+        // --- Agrupar por conexión; los cambios de estado sin remoto (LISTEN) van por puerto ---
+        TreeMap<Long, List<Evento>> conexiones = new TreeMap<>();
+        Map<Integer, List<Evento>> sinRemoto = new HashMap<>();
+        int[] porTipo = new int[TIPOS.length];
+        Set<Integer> hilos = new HashSet<>();
+        for (Evento e : eventos) {
+            porTipo[e.tipo < TIPOS.length && e.tipo > 0 ? e.tipo : 0]++;
+            hilos.add(e.hilo);
+            if (e.tipo == PacketTrace.ESTADO && e.destino == 0) {
+                sinRemoto.computeIfAbsent(e.origen, k -> new ArrayList<>()).add(e);
+            } else {
+                conexiones.computeIfAbsent(clave(e.origen, e.destino), k -> new ArrayList<>()).add(e);
+            }
+        }
+
+        System.out.printf("Eventos: %d | hilos: %d | lapso: %.3f ms | conexiones: %d%n", eventos.size(), hilos.size(),
+                (eventos.get(eventos.size() - 1).tiempo - t0) / 1e6, conexiones.size());
+        StringBuilder tipos = new StringBuilder();
+        for (int i = 1; i < TIPOS.length; i++) tipos.append(TIPOS[i]).append('=').append(porTipo[i]).append(' ');
+        System.out.println(tipos.toString().trim());
+
+        for (Map.Entry<Long, List<Evento>> c : conexiones.entrySet()) {
+            int a = (int) (c.getKey() >>> 32);
+            int b = (int) (long) c.getKey();
+            List<Evento> lista = c.getValue();
+            for (int puerto : new int[]{a, b}) {
+                List<Evento> extra = sinRemoto.remove(puerto);
+                if (extra != null) lista.addAll(extra);
+            }
+            lista.sort((x, y) -> Long.compare(x.tiempo, y.tiempo));
+            analizarConexion(a, b, lista, t0, detalle);
+        }
+    }
+
+    /** Lee y valida un fichero de PacketTrace. */
+    static List<Evento> leer(Path fichero) throws IOException {
+        List<Evento> eventos = new ArrayList<>();
+        long tamaño = Files.size(fichero);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichero)))) {
+            if (tamaño < 8 || in.readInt() != PacketTrace.MAGIC) {
+                throw new IOException("No es un fichero de PacketTrace: " + fichero);
+            }
+            short version = in.readShort();
+            if (version != PacketTrace.VERSION) throw new IOException("Versión de traza no soportada: " + version);
+            int tamRegistro = in.readShort();
+            long registros = (tamaño - 8) / tamRegistro;
+            for (long i = 0; i < registros; i++) {
+                Evento e = new Evento();
+                e.tiempo = in.readLong();
+                e.tipo = in.readByte();
+                e.flags = in.readUnsignedByte();
+                e.hilo = in.readUnsignedShort();
+                e.origen = in.readInt();
+                e.destino = in.readInt();
+                e.seq = in.readInt();
+                e.ack = in.readInt();
+                e.wnd = in.readInt();
+                e.longitud = in.readInt();
+                in.skipBytes(tamRegistro - PacketTrace.TAM_REGISTRO); // Campos de versiones futuras
+                eventos.add(e);
+            }
+        }
+        return eventos;
+    }
+
+    private static long clave(int p1, int p2) {
+        int a = Math.min(p1, p2), b = Math.max(p1, p2);
+        return (long) a << 32 | (b & 0xFFFFFFFFL);
+    }
+
+    private static void analizarConexion(int a, int b, List<Evento> lista, long t0, boolean detalle) {
+        System.out.printf("%n=== Conexión %d <-> %d: %d eventos, de %.3f a %.3f ms ===%n", a, b, lista.size(),
+                (lista.get(0).tiempo - t0) / 1e6, (lista.get(lista.size() - 1).tiempo - t0) / 1e6);
+
+        for (int[] sentido : new int[][]{{a, b}, {b, a}}) {
+            int envios = 0, descartes = 0, retransmisiones = 0, recepciones = 0, saturacion = 0;
+            for (Evento e : lista) {
+                if (e.tipo == PacketTrace.ESTADO || e.origen != sentido[0]) continue;
+                if (e.tipo == PacketTrace.ENVIO) envios++;
+                else if (e.tipo == PacketTrace.DESCARTE) descartes++;
+                else if (e.tipo == PacketTrace.RETRANSMISION) retransmisiones++;
+                else if (e.tipo == PacketTrace.RECEPCION) recepciones++;
+                else if (e.tipo == PacketTrace.SATURACION) saturacion++;
+            }
+            // Los retirados por saturación no son pérdidas: el segmento ya esperaba en cola, o lo supera otro ACK
+            System.out.printf("  %d -> %d: enviados=%d recibidos=%d descartados=%d retransmisiones=%d retirados por saturación=%d%n",
+                    sentido[0], sentido[1], envios, recepciones, descartes, retransmisiones, saturacion);
+        }
+
+        for (int puerto : new int[]{a, b}) {
+            StringBuilder estados = new StringBuilder();
+            for (Evento e : lista) {
+                if (e.tipo != PacketTrace.ESTADO || e.origen != puerto) continue;
+                estados.append(String.format(" %.3f:%s->%s", (e.tiempo - t0) / 1e6, nombreEstado(e.ack), nombreEstado(e.seq)));
+            }
+            if (estados.length() > 0) System.out.println("  Estados de " + puerto + ":" + estados);
+        }
+
+        analizarEmisor(a, lista, t0, detalle);
+        analizarEmisor(b, lista, t0, detalle);
+
+        if (detalle) {
+            System.out.println("  Línea de tiempo:");
+            for (Evento e : lista) System.out.println("    " + formatear(e, t0));
+        }
+    }
+
+    /** RTT, ventana anunciada por el otro extremo y bytes en vuelo del emisor indicado. */
+    private static void analizarEmisor(int emisor, List<Evento> lista, long t0, boolean detalle) {
+        TreeMap<Integer, Long> pendientes = new TreeMap<>(); // seq -> primer envío, aún sin confirmar
+        Set<Integer> vistos = new HashSet<>();
+        Set<Integer> retransmitidos = new HashSet<>();
+        List<Long> muestras = new ArrayList<>();
+        List<long[]> ventana = new ArrayList<>(); // (tiempo, wnd) en cada cambio
+        int maxEnviado = Integer.MIN_VALUE, maxAck = Integer.MIN_VALUE;
+        long maxEnVuelo = 0;
+
+        for (Evento e : lista) {
+            if (e.tipo == PacketTrace.ENVIO && e.origen == emisor && e.ocupaSecuencia()) {
+                if (!vistos.add(e.seq)) retransmitidos.add(e.seq); // Segundo envío de la misma secuencia
+                else pendientes.put(e.seq, e.tiempo);
+                maxEnviado = Math.max(maxEnviado, e.finSecuencia());
+            } else if (e.tipo == PacketTrace.RETRANSMISION && e.origen == emisor) {
+                retransmitidos.add(e.seq);
+            } else if (e.tipo == PacketTrace.RECEPCION && e.destino == emisor && e.tiene(PacketTrace.F_ACK)) {
+                // Una muestra por ACK, la del último segmento que confirma; si el tramo confirmado
+                // incluye un retransmitido (Karn), el ACK pudo esperar al hueco y no se mide.
+                TreeMap<Integer, Long> confirmados = new TreeMap<>(pendientes.headMap(e.ack, false));
+                boolean limpio = true;
+                for (int seq : confirmados.keySet()) limpio &= !retransmitidos.contains(seq);
+                if (limpio && !confirmados.isEmpty()) muestras.add(e.tiempo - confirmados.lastEntry().getValue());
+                pendientes.headMap(e.ack, false).clear();
+                maxAck = Math.max(maxAck, e.ack);
+                if (ventana.isEmpty() || ventana.get(ventana.size() - 1)[1] != e.wnd) {
+                    ventana.add(new long[]{e.tiempo, e.wnd});
+                }
+            }
+            if (maxEnviado != Integer.MIN_VALUE && maxAck != Integer.MIN_VALUE) {
+                maxEnVuelo = Math.max(maxEnVuelo, maxEnviado - maxAck);
+            }
+        }
+        if (vistos.isEmpty()) return;
+
+        System.out.printf("  Emisor %d: %d segmentos, %d retransmitidos, máximo en vuelo=%d bytes%n",
+                emisor, vistos.size(), retransmitidos.size(), maxEnVuelo);
+        if (!muestras.isEmpty()) {
+            Collections.sort(muestras);
+            long suma = 0;
+            for (long m : muestras) suma += m;
+            System.out.printf("    RTT (%d muestras): min=%.3f p50=%.3f media=%.3f max=%.3f ms%n", muestras.size(),
+                    muestras.get(0) / 1e6, muestras.get(muestras.size() / 2) / 1e6,
+                    suma / (double) muestras.size() / 1e6, muestras.get(muestras.size() - 1) / 1e6);
+        }
+        if (!ventana.isEmpty()) {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (long[] v : ventana) {
+                min = Math.min(min, v[1]);
+                max = Math.max(max, v[1]);
+            }
+            StringBuilder cambios = new StringBuilder();
+            int mostrar = detalle ? ventana.size() : Math.min(ventana.size(), MAX_CAMBIOS_RESUMEN);
+            for (int i = 0; i < mostrar; i++) {
+                cambios.append(String.format(" %.3f:%d", (ventana.get(i)[0] - t0) / 1e6, ventana.get(i)[1]));
+            }
+            if (mostrar < ventana.size()) cambios.append(" ...");
+            System.out.printf("    Ventana anunciada: %d cambios, min=%d max=%d |%s%n", ventana.size(), min, max, cambios);
+        }
+    }
+
+    private static String formatear(Evento e, long t0) {
+        String tipo = e.tipo > 0 && e.tipo < TIPOS.length ? TIPOS[e.tipo] : "?";
+        if (e.tipo == PacketTrace.ESTADO) {
+            return String.format("%10.3f ms %-13s %d: %s -> %s", (e.tiempo - t0) / 1e6, tipo, e.origen,
+                    nombreEstado(e.ack), nombreEstado(e.seq));
+        }
+        StringBuilder flags = new StringBuilder();
+        if (e.tiene(PacketTrace.F_SYN)) flags.append("SYN ");
+        if (e.tiene(PacketTrace.F_FIN)) flags.append("FIN ");
+        if (e.tiene(PacketTrace.F_PSH)) flags.append("PSH ");
+        if (e.tiene(PacketTrace.F_ACK)) flags.append("ACK ");
+        if (e.tiene(PacketTrace.F_FEC)) flags.append("FEC ");
+        return String.format("%10.3f ms %-13s %d->%d [%s] seq=%d ack=%d wnd=%d len=%d (hilo %d)",
+                (e.tiempo - t0) / 1e6, tipo, e.origen, e.destino, flags.toString().trim(),
+                e.seq, e.ack, e.wnd, e.longitud, e.hilo);
+    }
+
+    private static String nombreEstado(int ordinal) {
+        State[] estados = State.values();
+        return ordinal >= 0 && ordinal < estados.length ? estados[ordinal].name() : "?" + ordinal;
+    }
+}
\ No newline at end of file
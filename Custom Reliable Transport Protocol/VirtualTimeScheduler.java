@@ -0,0 +1,89 @@
+package tcppruebas.uni.TCP_v5;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Motor de simulación de eventos discretos con reloj virtual.
+ * Todos los eventos (entregas de SimNet, RTOs de TSocket, lógica de la aplicación)
+ * se ejecutan en el hilo que llama a run(), en orden de (tiempo, orden de alta).
+ * El tiempo salta directamente al siguiente evento, y con la misma semilla la
+ * ejecución se reproduce exactamente.
+ *
+ * No es thread-safe: solo debe usarse desde el hilo de la simulación.
+ */
+public class VirtualTimeScheduler implements Scheduler {
+
+    private final PriorityQueue<Evento> eventos = new PriorityQueue<>();
+    private final Random random;
+    private long ahora = 0;      // Tiempo virtual actual (ns)
+    private long contador = 0;   // Desempate FIFO entre eventos del mismo instante
+    private long ejecutados = 0;
+
+    public VirtualTimeScheduler(long semilla) {
+        this.random = new Random(semilla);
+    }
+
+    @Override
+    public long nanoTime() {
+        return ahora;
+    }
+
+    @Override
+    public Task schedule(Runnable tarea, long retardo, TimeUnit unidad) {
+        Evento e = new Evento(ahora + Math.max(0, unidad.toNanos(retardo)), contador++, tarea);
+        eventos.add(e);
+        return e;
+    }
+
+    /** Generador aleatorio sembrado, compartido por todos los componentes simulados. */
+    public Random random() {
+        return random;
+    }
+
+    /** Ejecuta eventos hasta que no quede ninguno. */
+    public void run() {
+        runUntil(Long.MAX_VALUE);
+    }
+
+    /** Ejecuta los eventos programados hasta el instante indicado (ns, inclusive). */
+    public void runUntil(long limite) {
+        while (!eventos.isEmpty() && eventos.peek().tiempo <= limite) {
+            Evento e = eventos.poll();
+            if (e.cancelado) continue;
+            ahora = e.tiempo;
+            ejecutados++;
+            e.tarea.run();
+        }
+        if (limite != Long.MAX_VALUE && limite > ahora) ahora = limite;
+    }
+
+    public long getEventosEjecutados() {
+        return ejecutados;
+    }
+
+    private static class Evento implements Comparable<Evento>, Task {
+        final long tiempo;
+        final long orden;
+        final Runnable tarea;
+        boolean cancelado;
+
+        Evento(long tiempo, long orden, Runnable tarea) {
+            this.tiempo = tiempo;
+            this.orden = orden;
+            this.tarea = tarea;
+        }
+
+        @Override
+        public void cancel() {
+            cancelado = true;
+        }
+
+        @Override
+        public int compareTo(Evento o) {
+            if (tiempo != o.tiempo) return Long.compare(tiempo, o.tiempo);
+            return Long.compare(orden, o.orden);
+        }
+    }
+}